@@ -23,6 +23,7 @@ import android.net.Uri;
 public class C extends it.sineo.android.common.C {
 	public final static boolean DEVELOPER_MODE = false;
 
+	/** Also in the paths shared by the FileProvider, see res/xml/file_paths.xml */
 	public final static String EXTERNAL_DIR = "TiledMapEditor";
 	public final static String EXTERNAL_DIR_THUMBNAILS = ".thumbs";
 
@@ -31,6 +32,9 @@ public class C extends it.sineo.android.common.C {
 	public final static int REQ_CODE_EDIT_MAP = 3;
 	public final static int REQ_CODE_SELECT_EXTERNAL_TILE = 4;
 
+	/** Maximum number of rows (and columns) of a map */
+	public final static int MAP_MAX_SIZE = 100;
+
 	public final static String EXTRA_MAP_ROWS = C.class.getPackage().getName() + ".extra.map_rows";
 	public final static String EXTRA_MAP_COLUMNS = C.class.getPackage().getName() + ".extra.map_columns";
 
@@ -39,8 +43,6 @@ public class C extends it.sineo.android.common.C {
 	 * 
 	 */
 	public final static String EXTRA_MAP_BUNDLE = C.class.getPackage().getName() + ".extra.map_bundle";
-	public final static String EXTRA_MAP_JSON = C.class.getPackage().getName() + ".extra.map_json";
-	public final static String EXTRA_MAP_THUMB = C.class.getPackage().getName() + ".extra.map_thumb";
 
 	public final static int DIALOG_NEW_MAP = 1;
 	public final static int DIALOG_CONFIRM_SAVE_MAP = 2;
@@ -54,13 +56,15 @@ public class C extends it.sineo.android.common.C {
 
 	public final static String PREFS_MAP_COLOR_EMPTY_TILE = "map_color_empty_tile";
 	public final static int DEFAULT_MAP_COLOR_EMPTY_TILE = Color.DKGRAY;
+	public final static String PREFS_MAP_DISPLAY_LIST = "map_display_list";
+	public final static boolean DEFAULT_MAP_DISPLAY_LIST = false;
 
 	/*
 	 * Database and content provider
 	 */
 	public final static String DATABASE_NAME = "TileMapEditor";
 	public final static String DATABASE_TABLE = "t_map";
-	public final static int DATABASE_VERSION = 1;
+	public final static int DATABASE_VERSION = 3;
 
 	public final static int MATCH_MAPS = 1;
 	public final static int MATCH_MAP_ID = 2;
@@ -70,6 +74,9 @@ public class C extends it.sineo.android.common.C {
 	public final static String CONTENT_MAP_BASE = "tileMaps";
 	public final static Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY_MAP + "/" + CONTENT_MAP_BASE);
 
+	/** Shares the exported images, see res/xml/file_paths.xml */
+	public final static String AUTHORITY_FILES = C.class.getPackage().getName() + ".files";
+
 	public final static String CONTENT_TYPE_MAP = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.sineo.tileMap";
 
 }
@@ -19,11 +19,9 @@ package it.sineo.android.tileMapEditor;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -45,10 +43,11 @@ import android.widget.GridView;
 import android.widget.Toast;
 
 import com.actionbarsherlock.app.SherlockFragmentActivity;
+import com.actionbarsherlock.view.Window;
 import com.michaelnovakjr.numberpicker.NumberPicker;
 
 public class HomeActivity extends SherlockFragmentActivity implements LoaderCallbacks<Cursor>,
-		AdapterView.OnItemClickListener {
+		AdapterView.OnItemClickListener, MapSaver.OnSaveListener {
 
 	private String TAG = HomeActivity.class.getSimpleName();
 
@@ -66,6 +65,8 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 		}
 
 		super.onCreate(savedInstanceState);
+		/* Shown while maps are being saved in the background */
+		requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
 		setContentView(R.layout.home);
 
 		gvPreview = (GridView) findViewById(R.id.home_grid);
@@ -89,7 +90,7 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 		getSupportLoaderManager().initLoader(0, null, this);
 
 		String[] cols = new String[] {
-				"_id", "_name", "_json_data", "_last_update",
+				"_id", "_name", "_last_update",
 		};
 
 		adapter = new MySimpleCursorAdapter(getApplicationContext(), R.layout.home_grid_item, null, cols, null, 0);
@@ -104,6 +105,23 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 		progressDialog = ProgressDialog.show(HomeActivity.this, null, getString(R.string.home_dlg_loading_maps), true);
 	}
 
+	@Override
+	protected void onResume() {
+		super.onResume();
+		MapSaver.setOnSaveListener(this);
+	}
+
+	@Override
+	protected void onPause() {
+		MapSaver.setOnSaveListener(null);
+		super.onPause();
+	}
+
+	@Override
+	public void onSaveProgress(int pending) {
+		setSupportProgressBarIndeterminateVisibility(pending > 0);
+	}
+
 	/*
 	 * LoaderCallback
 	 */
@@ -112,7 +130,6 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 		String[] projection = {
 				TileMap.Columns.KEY_ROWID,
 				TileMap.Columns.KEY_NAME,
-				TileMap.Columns.KEY_JSON_DATA,
 				TileMap.Columns.KEY_LAST_UPDATE,
 		};
 		CursorLoader cursorLoader = new CursorLoader(this, C.CONTENT_URI, projection, null, null, "_last_update DESC");
@@ -143,12 +160,9 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 	 */
 	@Override
 	public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+		/* The map is loaded by TiledMapActivity itself, only pass its id */
 		Intent tiledMapActivity = new Intent(HomeActivity.this, TiledMapActivity.class);
-		Cursor cur = (Cursor) parent.getAdapter().getItem(position);
-		long mapid = cur.getLong(0);
-		String json = cur.getString(2);
-		tiledMapActivity.putExtra(C.EXTRA_MAP_JSON, json);
-		tiledMapActivity.putExtra(C.EXTRA_MAP_ID, mapid);
+		tiledMapActivity.putExtra(C.EXTRA_MAP_ID, id);
 		startActivityForResult(tiledMapActivity, C.REQ_CODE_EDIT_MAP);
 	}
 
@@ -194,9 +208,9 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 				View dlgView = (View) inflater.inflate(R.layout.home_dlg_new, null);
 				final NumberPicker npRows = (NumberPicker) dlgView.findViewById(R.id.home_dlg_rows);
 				final NumberPicker npColumns = (NumberPicker) dlgView.findViewById(R.id.home_dlg_columns);
-				npRows.setRange(1, 20);
+				npRows.setRange(1, C.MAP_MAX_SIZE);
 				npRows.setCurrent(2);
-				npColumns.setRange(1, 20);
+				npColumns.setRange(1, C.MAP_MAX_SIZE);
 				npColumns.setCurrent(2);
 
 				AlertDialog.Builder bldr = new AlertDialog.Builder(HomeActivity.this);
@@ -206,22 +220,12 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 					public void onClick(DialogInterface dialog, int which) {
 						switch (which) {
 							case DialogInterface.BUTTON_POSITIVE: {
-								/* Memory check */
-								int tileSize = getResources().getDimensionPixelSize(R.dimen.tiledMap_tile);
 								int columns = npColumns.getCurrent();
 								int rows = npRows.getCurrent();
-								try {
-									Bitmap.createBitmap(columns * tileSize, rows * tileSize, Bitmap.Config.ARGB_8888).recycle();
-									/* Ok, proceed */
-									Intent tiledMapActivity = new Intent(HomeActivity.this, TiledMapActivity.class);
-									tiledMapActivity.putExtra(C.EXTRA_MAP_ROWS, rows);
-									tiledMapActivity.putExtra(C.EXTRA_MAP_COLUMNS, columns);
-									startActivityForResult(tiledMapActivity, C.REQ_CODE_NEW_MAP);
-								} catch (OutOfMemoryError oomer) {
-									/* Not enough memory to draw this map */
-									Toast.makeText(HomeActivity.this, getString(R.string.home_dlg_new_oom, rows, columns),
-											Toast.LENGTH_LONG).show();
-								}
+								Intent tiledMapActivity = new Intent(HomeActivity.this, TiledMapActivity.class);
+								tiledMapActivity.putExtra(C.EXTRA_MAP_ROWS, rows);
+								tiledMapActivity.putExtra(C.EXTRA_MAP_COLUMNS, columns);
+								startActivityForResult(tiledMapActivity, C.REQ_CODE_NEW_MAP);
 								break;
 							}
 							case DialogInterface.BUTTON_NEGATIVE: {
@@ -269,30 +273,12 @@ public class HomeActivity extends SherlockFragmentActivity implements LoaderCall
 
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-		if (requestCode == C.REQ_CODE_NEW_MAP) {
-			if (resultCode == RESULT_OK && data != null) {
-				String mapJSON = data.getStringExtra(C.EXTRA_MAP_JSON);
-				TileMap map = new TileMap(mapJSON);
-
-				ContentValues values = new ContentValues();
-				values.put(TileMap.Columns.KEY_NAME, map.name);
-				values.put(TileMap.Columns.KEY_JSON_DATA, mapJSON);
-				values.put(TileMap.Columns.KEY_THUMB, data.getByteArrayExtra(C.EXTRA_MAP_THUMB));
-				getContentResolver().insert(C.CONTENT_URI, values);
-			}
-			Log.d(TAG, "received code " + resultCode + " w/ data: " + data);
-		} else if (requestCode == C.REQ_CODE_EDIT_MAP) {
-			if (resultCode == RESULT_OK && data != null) {
-				String mapJSON = data.getStringExtra(C.EXTRA_MAP_JSON);
-				long id = data.getLongExtra(C.EXTRA_MAP_ID, -1);
-				TileMap map = new TileMap(mapJSON);
-				ContentValues values = new ContentValues();
-				values.put(TileMap.Columns.KEY_NAME, map.name);
-				values.put(TileMap.Columns.KEY_JSON_DATA, mapJSON);
-				values.put(TileMap.Columns.KEY_THUMB, data.getByteArrayExtra(C.EXTRA_MAP_THUMB));
-				Uri mapUri = Uri.withAppendedPath(C.CONTENT_URI, Long.toString(id));
-				getContentResolver().update(mapUri, values, null, null);
-			}
+		/*
+		 * Nothing to do: TiledMapActivity saves the map through the content
+		 * provider, and the grid is refreshed by the loader.
+		 */
+		if (C.DEVELOPER_MODE) {
+			Log.d(TAG, "received code " + resultCode + " for request " + requestCode + " w/ data: " + data);
 		}
 		super.onActivityResult(requestCode, resultCode, data);
 	}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for a JSON object of scalar members, modelled on the
+ * subset of android.util.JsonReader used by {@link TileMapJsonReader}, which
+ * is not available before Honeycomb. Only a small buffer of the document is
+ * kept in memory. Nested values are skipped, and every malformed input is
+ * reported as an IOException.
+ */
+class JsonPullReader {
+	private final Reader in;
+	private final char[] buffer = new char[1024];
+	private int pos, limit;
+	private final StringBuilder token = new StringBuilder();
+	/* Whether a ',' must come before the next member of the object */
+	private boolean needComma;
+
+	public JsonPullReader(Reader in) {
+		this.in = in;
+	}
+
+	public void beginObject() throws IOException {
+		expect('{');
+		needComma = false;
+	}
+
+	public void endObject() throws IOException {
+		expect('}');
+	}
+
+	/**
+	 * @return true if the current object has another member.
+	 */
+	public boolean hasNext() throws IOException {
+		int c = peekNonWhitespace();
+		if (c == -1) {
+			throw new EOFException("unterminated object");
+		}
+		return c != '}';
+	}
+
+	public String nextName() throws IOException {
+		if (needComma) {
+			expect(',');
+		}
+		expect('"');
+		String name = readString();
+		expect(':');
+		needComma = true;
+		return name;
+	}
+
+	/**
+	 * Returns the next value as a string: numbers and literals are returned as
+	 * they are written, like android.util.JsonReader does.
+	 */
+	public String nextString() throws IOException {
+		int c = peekNonWhitespace();
+		if (c == '"') {
+			pos++;
+			return readString();
+		} else if (c == '{' || c == '[' || c == -1) {
+			throw new IOException("expected a scalar value");
+		}
+		return readLiteral();
+	}
+
+	public int nextInt() throws IOException {
+		String value = nextString();
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException nfex) {
+			throw new IOException("expected an int: " + value);
+		}
+	}
+
+	public double nextDouble() throws IOException {
+		String value = nextString();
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException nfex) {
+			throw new IOException("expected a number: " + value);
+		}
+	}
+
+	/**
+	 * Skips the next value, including nested objects and arrays.
+	 */
+	public void skipValue() throws IOException {
+		int c = peekNonWhitespace();
+		if (c != '{' && c != '[') {
+			nextString();
+			return;
+		}
+		int depth = 0;
+		do {
+			c = read();
+			if (c == -1) {
+				throw new EOFException("unterminated value");
+			} else if (c == '"') {
+				readString();
+			} else if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+			}
+		} while (depth > 0);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private String readString() throws IOException {
+		token.setLength(0);
+		while (true) {
+			int c = read();
+			if (c == -1) {
+				throw new EOFException("unterminated string");
+			} else if (c == '"') {
+				return token.toString();
+			} else if (c == '\\') {
+				token.append(readEscape());
+			} else {
+				token.append((char) c);
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit == -1) {
+						throw new IOException("malformed unicode escape");
+					}
+					value = (value << 4) | digit;
+				}
+				return (char) value;
+			case '"':
+			case '\\':
+			case '/':
+				return (char) c;
+			default:
+				throw new IOException("malformed escape");
+		}
+	}
+
+	private String readLiteral() throws IOException {
+		token.setLength(0);
+		while (true) {
+			int c = peek();
+			if (c == -1 || c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c)) {
+				break;
+			}
+			token.append((char) c);
+			pos++;
+		}
+		if (token.length() == 0) {
+			throw new IOException("expected a value");
+		}
+		return token.toString();
+	}
+
+	private void expect(char expected) throws IOException {
+		int c = peekNonWhitespace();
+		if (c != expected) {
+			throw new IOException("expected '" + expected + "'");
+		}
+		pos++;
+	}
+
+	private int peekNonWhitespace() throws IOException {
+		int c = peek();
+		while (c != -1 && isWhitespace(c)) {
+			pos++;
+			c = peek();
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit) {
+			limit = in.read(buffer, 0, buffer.length);
+			pos = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[pos];
+	}
+
+	private int read() throws IOException {
+		int c = peek();
+		if (c != -1) {
+			pos++;
+		}
+		return c;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+}
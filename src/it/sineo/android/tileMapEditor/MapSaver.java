@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Saves maps in the background: the caller only hands over a snapshot of the
+ * map (its binary data and a copy of the thumbnail) and can go on, or finish,
+ * right away. Thumbnail completion and compression and database writes happen
+ * on a single worker thread, so that saves are applied in order.
+ */
+class MapSaver {
+	private final static String TAG = MapSaver.class.getSimpleName();
+
+	public interface OnSaveListener {
+		/**
+		 * Called on the UI thread whenever a save is queued or completed.
+		 *
+		 * @param pending
+		 *          number of saves not completed yet.
+		 */
+		public void onSaveProgress(int pending);
+	}
+
+	private final static ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final static Handler handler = new Handler(Looper.getMainLooper());
+	/* Only accessed on the UI thread */
+	private static int pending;
+	/* Number of saves not completed yet, by map id (new maps are not included) */
+	private final static HashMap<Long, Integer> pendingById = new HashMap<Long, Integer>();
+	private static OnSaveListener listener;
+
+	/**
+	 * Queues the save of a map. Must be called on the UI thread.
+	 *
+	 * @param mapId
+	 *          the id of the map, or -1 for a new map.
+	 * @param snapshot
+	 *          the thumbnail, completed and compressed in the background.
+	 */
+	public static void save(Context context, final long mapId, final String name, final byte[] data,
+			final ThumbSnapshot snapshot) {
+		final Context appContext = context.getApplicationContext();
+		final ContentResolver resolver = appContext.getContentResolver();
+		pending++;
+		if (mapId != -1) {
+			Integer count = pendingById.get(mapId);
+			pendingById.put(mapId, count == null ? 1 : count + 1);
+		}
+		notifyListener();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				boolean saved = false;
+				try {
+					Bitmap thumb = snapshot.render();
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					thumb.compress(CompressFormat.PNG, 9, baos);
+					thumb.recycle();
+
+					ContentValues values = new ContentValues();
+					values.put(TileMap.Columns.KEY_NAME, name);
+					values.put(TileMap.Columns.KEY_DATA, data);
+					values.put(TileMap.Columns.KEY_THUMB, baos.toByteArray());
+					if (mapId == -1) {
+						saved = resolver.insert(C.CONTENT_URI, values) != null;
+					} else {
+						Uri mapUri = Uri.withAppendedPath(C.CONTENT_URI, Long.toString(mapId));
+						saved = resolver.update(mapUri, values, null, null) > 0;
+					}
+					if (!saved) {
+						Log.e(TAG, "map " + mapId + " was not written");
+					}
+				} catch (RuntimeException rex) {
+					Log.e(TAG, "unable to save map " + mapId, rex);
+				} catch (OutOfMemoryError oome) {
+					Log.e(TAG, "not enough memory to save map " + mapId, oome);
+				} finally {
+					final boolean success = saved;
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							pending--;
+							if (mapId != -1) {
+								int count = pendingById.get(mapId);
+								if (count == 1) {
+									pendingById.remove(mapId);
+								} else {
+									pendingById.put(mapId, count - 1);
+								}
+							}
+							if (!success) {
+								/* The editor is most likely gone already: tell the user anyway */
+								Toast.makeText(appContext, appContext.getString(R.string.tiledMap_error_save, name),
+										Toast.LENGTH_LONG).show();
+							}
+							notifyListener();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the queued saves of the given map to be completed, so that it
+	 * is not read back before its latest version has been written. Returns
+	 * immediately if there are none, which is the usual case. Must be called on
+	 * the UI thread.
+	 */
+	public static void awaitSaves(long mapId) {
+		if (!pendingById.containsKey(mapId)) {
+			return;
+		}
+		/* Saves are applied in order: once this one runs, they are all done */
+		Future<?> barrier = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		try {
+			barrier.get();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException eex) {
+			/* Cannot happen: the barrier does nothing */
+			Log.e(TAG, "unable to wait for the saves of map " + mapId, eex);
+		}
+	}
+
+	/**
+	 * Sets the listener to be notified of the progress of the saves, and
+	 * notifies it of the current state. Must be called on the UI thread.
+	 */
+	public static void setOnSaveListener(OnSaveListener l) {
+		listener = l;
+		notifyListener();
+	}
+
+	private static void notifyListener() {
+		if (listener != null) {
+			listener.onSaveProgress(pending);
+		}
+	}
+}
@@ -16,19 +16,12 @@
 
 package it.sineo.android.tileMapEditor;
 
-import java.io.File;
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
-import java.util.Map;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.support.v4.widget.SimpleCursorAdapter;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -42,18 +35,27 @@ public class MySimpleCursorAdapter extends SimpleCursorAdapter {
 	public MySimpleCursorAdapter(Context context, int layout, Cursor c, String[] from, int[] to, int flags) {
 		super(context, layout, c, from, to, flags);
 		this.ctx = context;
+		this.thumbLoader = new ThumbnailLoader(context.getContentResolver(), ThumbnailLoader.defaultBudget());
 	}
 
 	private SimpleDateFormat sdfLastUpdate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
 	private Context ctx;
 	private LayoutInflater inflater;
-	private Map<Long /* id */, Drawable /* thumbnail */> cache = new HashMap<Long, Drawable>();
-	private Map<Long /* id */, Long /* lastUpdate */> cacheValidity = new HashMap<Long, Long>();
+	private final ThumbnailLoader thumbLoader;
 
-	private static class ViewHolder {
+	private static class ViewHolder implements ThumbnailLoader.Target {
 		TextView tvName, tvDate;
 		ImageView ivThumb;
+
+		@Override
+		public void onThumbnailLoaded(Bitmap thumb) {
+			if (thumb != null) {
+				ivThumb.setImageBitmap(thumb);
+			} else {
+				ivThumb.setImageResource(R.drawable.not_found);
+			}
+		}
 	}
 
 	public View getView(int position, View convertView, ViewGroup parent) {
@@ -76,38 +78,23 @@ public class MySimpleCursorAdapter extends SimpleCursorAdapter {
 
 		long id = getCursor().getLong(0);
 		String name = getCursor().getString(1);
-		long lastUpdate = getCursor().getLong(3);
+		long lastUpdate = getCursor().getLong(2);
 
 		tag.tvName.setText(name);
 		tag.tvDate.setText(sdfLastUpdate.format(lastUpdate));
 
-		Drawable thumb;
-		if (!cache.containsKey(id) || cacheValidity.get(id) < lastUpdate) {
-			/* Not loaded yet, or changed after being cached: load it again */
-			try {
-				File thumbFile = new File(Util.getExternalThumbnailsDirectory(), "tn_" + id + ".png");
-				if (!thumbFile.exists()) {
-					thumb = ctx.getResources().getDrawable(R.drawable.not_found);
-				} else {
-					Bitmap bmp = BitmapFactory.decodeFile(thumbFile.getAbsolutePath());
-					if (bmp != null) {
-						thumb = new BitmapDrawable(ctx.getResources(), bmp);
-					} else {
-						thumb = ctx.getResources().getDrawable(R.drawable.not_found);
-					}
-				}
-			} catch (Exception ex) {
-				ex.printStackTrace();
-				Log.e(TAG, "exception loading thumb: " + ex.getMessage());
-				thumb = ctx.getResources().getDrawable(R.drawable.not_found);
-			}
-			cache.put(id, thumb);
-			cacheValidity.put(id, lastUpdate);
+		/* Thumbnails are decoded in the background, unless already cached */
+		Bitmap thumb = thumbLoader.get(id, lastUpdate);
+		if (thumb != null) {
+			thumbLoader.cancel(tag);
+			tag.ivThumb.setImageBitmap(thumb);
+		} else if (thumbLoader.isMissing(id, lastUpdate)) {
+			thumbLoader.cancel(tag);
+			tag.ivThumb.setImageResource(R.drawable.not_found);
 		} else {
-			/* In the cache and valid */
-			thumb = cache.get(id);
+			tag.ivThumb.setImageDrawable(null);
+			thumbLoader.load(id, lastUpdate, tag);
 		}
-		tag.ivThumb.setImageDrawable(thumb);
 
 		return convertView;
 	}
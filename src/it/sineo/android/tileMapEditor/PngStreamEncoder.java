@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal PNG encoder (8 bit RGBA, non interlaced) which receives the image
+ * one row at a time and writes it to the output as it goes, so that the whole
+ * image never has to be in memory.
+ * <p>
+ * Usage: create it (the header is written immediately), call
+ * {@link #writeRow(int[], int)} once per row, top to bottom, then
+ * {@link #finish()}. {@link #close()} must be called in any case, also on
+ * failure, to release the compressor. The output stream is not closed.
+ */
+class PngStreamEncoder {
+	private final static byte[] SIGNATURE = {
+			(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+	};
+	private final static byte[] IHDR = {
+			'I', 'H', 'D', 'R'
+	};
+	private final static byte[] IDAT = {
+			'I', 'D', 'A', 'T'
+	};
+	private final static byte[] IEND = {
+			'I', 'E', 'N', 'D'
+	};
+	private final static int BYTES_PER_PIXEL = 4;
+	private final static byte FILTER_SUB = 1;
+	/** Size of the IDAT chunks. */
+	private final static int CHUNK_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+	private final int width;
+	private final int height;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	/* Filter type + filtered RGBA samples of the current row */
+	private final byte[] row;
+	/* Compressed data not written yet */
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private int chunkLength;
+	private final byte[] word = new byte[4];
+	private int rowsWritten;
+
+	/**
+	 * @param level
+	 *          the compression level, from 0 to 9, or
+	 *          Deflater.DEFAULT_COMPRESSION (-1).
+	 */
+	public PngStreamEncoder(OutputStream out, int width, int height, int level) throws IOException {
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.deflater = new Deflater(level);
+		this.row = new byte[1 + width * BYTES_PER_PIXEL];
+
+		boolean written = false;
+		try {
+			out.write(SIGNATURE);
+			byte[] header = new byte[13];
+			putInt(header, 0, width);
+			putInt(header, 4, height);
+			header[8] = 8; // bit depth
+			header[9] = 6; // color type: RGBA
+			header[10] = 0; // compression: deflate
+			header[11] = 0; // filter method
+			header[12] = 0; // no interlace
+			writeChunk(IHDR, header, header.length);
+			written = true;
+		} finally {
+			/* The caller has no encoder to close */
+			if (!written) {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Encodes one row of the image.
+	 *
+	 * @param argb
+	 *          the pixels of the row, as returned by Bitmap.getPixels() (i.e. non
+	 *          premultiplied).
+	 * @param offset
+	 *          index of the first pixel of the row in argb.
+	 */
+	public void writeRow(int[] argb, int offset) throws IOException {
+		if (rowsWritten == height) {
+			throw new IllegalStateException("all the rows have already been written");
+		}
+		/*
+		 * "Sub" filter: each byte is stored as the difference from the same
+		 * sample of the previous pixel, which compresses well for the large flat
+		 * areas of a map.
+		 */
+		row[0] = FILTER_SUB;
+		int prev = 0;
+		for (int x = 0, i = 1; x < width; x++, i += BYTES_PER_PIXEL) {
+			int pixel = argb[offset + x];
+			row[i] = (byte) ((pixel >> 16) - (prev >> 16));
+			row[i + 1] = (byte) ((pixel >> 8) - (prev >> 8));
+			row[i + 2] = (byte) (pixel - prev);
+			row[i + 3] = (byte) ((pixel >>> 24) - (prev >>> 24));
+			prev = pixel;
+		}
+		deflater.setInput(row);
+		while (!deflater.needsInput()) {
+			deflate();
+		}
+		rowsWritten++;
+	}
+
+	/**
+	 * Flushes the compressed data and writes the end of the image.
+	 */
+	public void finish() throws IOException {
+		if (rowsWritten != height) {
+			throw new IllegalStateException("only " + rowsWritten + " rows out of " + height + " have been written");
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			deflate();
+		}
+		if (chunkLength > 0) {
+			writeChunk(IDAT, chunk, chunkLength);
+		}
+		writeChunk(IEND, chunk, 0);
+		out.flush();
+	}
+
+	/**
+	 * Releases the native compressor. It can be called more than once, and
+	 * whether or not the image was finished; the output stream is not closed.
+	 */
+	public void close() {
+		deflater.end();
+	}
+
+	/* Only writes full chunks; the last one is written by finish() */
+	private void deflate() throws IOException {
+		chunkLength += deflater.deflate(chunk, chunkLength, CHUNK_SIZE - chunkLength);
+		if (chunkLength == CHUNK_SIZE) {
+			writeChunk(IDAT, chunk, chunkLength);
+			chunkLength = 0;
+		}
+	}
+
+	private void writeChunk(byte[] type, byte[] data, int length) throws IOException {
+		putInt(word, 0, length);
+		out.write(word);
+		out.write(type);
+		out.write(data, 0, length);
+		crc.reset();
+		crc.update(type);
+		crc.update(data, 0, length);
+		putInt(word, 0, (int) crc.getValue());
+		out.write(word);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+}
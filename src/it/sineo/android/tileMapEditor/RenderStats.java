@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Per-frame rendering counters, displayed as an overlay on top of the map.
+ * Every call site is expected to be guarded by <code>if (C.DEVELOPER_MODE)</code>
+ * so that the compiler strips it from release builds.
+ */
+class RenderStats {
+	public final static int PHASE_BACKGROUND = 0;
+	public final static int PHASE_TILES = 1;
+	public final static int PHASE_GRID = 2;
+	public final static int PHASE_BLIT = 3;
+	private final static String[] PHASE_NAMES = {
+			"background", "tiles", "grid", "blit"
+	};
+
+	private final long[] phaseNanos = new long[PHASE_NAMES.length];
+	private long phaseStart;
+	private long frameStart;
+	private long frameNanos;
+	private int frames;
+
+	private int tilesDrawn;
+	private int cacheHits;
+	private int cacheMisses;
+	/* Cumulative cache counters at the beginning of the frame */
+	private int cacheHitsBase, cacheMissesBase;
+
+	private final StringBuilder sb = new StringBuilder();
+
+	public void beginFrame(TileBitmapCache cache) {
+		frameStart = phaseStart = System.nanoTime();
+		for (int i = 0; i < phaseNanos.length; i++) {
+			phaseNanos[i] = 0;
+		}
+		tilesDrawn = 0;
+		cacheHitsBase = cache.getHits();
+		cacheMissesBase = cache.getMisses();
+	}
+
+	public void endPhase(int phase) {
+		long now = System.nanoTime();
+		phaseNanos[phase] += now - phaseStart;
+		phaseStart = now;
+	}
+
+	public void tileDrawn() {
+		tilesDrawn++;
+	}
+
+	public void endFrame(TileBitmapCache cache) {
+		cacheHits = cache.getHits() - cacheHitsBase;
+		cacheMisses = cache.getMisses() - cacheMissesBase;
+		frameNanos = System.nanoTime() - frameStart;
+		frames++;
+	}
+
+	/**
+	 * Draws the counters of the last frame, one per line, starting at (x, y).
+	 */
+	public void draw(Canvas canvas, Paint paint, float x, float y) {
+		float lineHeight = paint.getTextSize() * 1.2f;
+		sb.setLength(0);
+		sb.append("frame #").append(frames).append(": ").append(frameNanos / 1000 / 1000f).append(" ms");
+		canvas.drawText(sb, 0, sb.length(), x, y, paint);
+		y += lineHeight;
+		sb.setLength(0);
+		sb.append("tiles: ").append(tilesDrawn).append(", cache hits: ").append(cacheHits).append(", misses: ")
+				.append(cacheMisses);
+		canvas.drawText(sb, 0, sb.length(), x, y, paint);
+		for (int i = 0; i < phaseNanos.length; i++) {
+			y += lineHeight;
+			sb.setLength(0);
+			sb.append(PHASE_NAMES[i]).append(": ").append(phaseNanos[i] / 1000 / 1000f).append(" ms");
+			canvas.drawText(sb, 0, sb.length(), x, y, paint);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+/**
+ * Copy of the thumbnail of a map, taken on the UI thread. The cells whose tile
+ * was still being decoded at that time are empty: {@link #render()} decodes
+ * those tiles and draws them, on a background thread.
+ */
+class ThumbSnapshot {
+	private final Bitmap bitmap;
+	private final int cellSize;
+	private final int columns;
+	private final TileLoader loader;
+	/* Cells to be completed: index (row * columns + column), angle and path */
+	private final ArrayList<Integer> missingCells = new ArrayList<Integer>();
+	private final ArrayList<Byte> missingAngles = new ArrayList<Byte>();
+	private final ArrayList<String> missingPaths = new ArrayList<String>();
+
+	ThumbSnapshot(Bitmap bitmap, int cellSize, int columns, TileLoader loader) {
+		this.bitmap = bitmap;
+		this.cellSize = cellSize;
+		this.columns = columns;
+		this.loader = loader;
+	}
+
+	void addMissingCell(int index, byte angle, String path) {
+		missingCells.add(index);
+		missingAngles.add(angle);
+		missingPaths.add(path);
+	}
+
+	/**
+	 * Completes the thumbnail, decoding each missing tile once. Must not be
+	 * called on the UI thread.
+	 *
+	 * @return the thumbnail, which the caller owns.
+	 */
+	public Bitmap render() {
+		if (missingCells.isEmpty()) {
+			return bitmap;
+		}
+		Canvas canvas = new Canvas(bitmap);
+		HashMap<String, Bitmap> minis = new HashMap<String, Bitmap>();
+		float half = cellSize / 2f;
+		for (int i = 0; i < missingCells.size(); i++) {
+			String path = missingPaths.get(i);
+			Bitmap mini = minis.get(path);
+			if (mini == null && !minis.containsKey(path)) {
+				Bitmap source = loader.loadNow(path);
+				if (source != null) {
+					mini = Bitmap.createScaledBitmap(source, cellSize, cellSize, true);
+					if (mini != source) {
+						source.recycle();
+					}
+				}
+				/* Failures are stored too, so that they are not retried */
+				minis.put(path, mini);
+			}
+			if (mini != null) {
+				int index = missingCells.get(i);
+				int left = (index % columns) * cellSize;
+				int top = (index / columns) * cellSize;
+				canvas.save();
+				canvas.rotate(90 * missingAngles.get(i), left + half, top + half);
+				canvas.drawBitmap(mini, left, top, null);
+				canvas.restore();
+			}
+		}
+		for (Bitmap mini : minis.values()) {
+			if (mini != null) {
+				mini.recycle();
+			}
+		}
+		return bitmap;
+	}
+}
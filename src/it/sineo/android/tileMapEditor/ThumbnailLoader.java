@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Reads map thumbnails from the provider and decodes them on a background
+ * thread, keeping the most recently used ones in a memory bounded cache. A
+ * cached thumbnail is only valid for the last update time it was decoded
+ * for, so saved maps are read again. The grid cursor does not carry the
+ * thumbnails, which would fill its window with blobs.
+ * <p>
+ * Views are recycled by the grid: binding a view to another map detaches it
+ * from its previous request, which is cancelled if no other view waits for it.
+ * Requests for a map already being decoded are merged. All the methods must
+ * be called on the UI thread.
+ */
+class ThumbnailLoader {
+	private final static String TAG = ThumbnailLoader.class.getSimpleName();
+
+	public interface Target {
+		/**
+		 * Called on the UI thread with the decoded thumbnail, or null if it
+		 * could not be decoded.
+		 */
+		public void onThumbnailLoaded(Bitmap thumb);
+	}
+
+	private static class Entry {
+		final long lastUpdate;
+		/* Null if the map has no thumbnail, so that it is not read again */
+		final Bitmap bitmap;
+
+		Entry(long lastUpdate, Bitmap bitmap) {
+			this.lastUpdate = lastUpdate;
+			this.bitmap = bitmap;
+		}
+	}
+
+	private static class Request {
+		final long id;
+		final long lastUpdate;
+		final ArrayList<Target> targets = new ArrayList<Target>(1);
+		Future<?> future;
+
+		Request(long id, long lastUpdate) {
+			this.id = id;
+			this.lastUpdate = lastUpdate;
+		}
+	}
+
+	/* Keyed by map id: the entry holds the last update time it is valid for */
+	private final LruCache<Long, Entry> cache;
+	private final ContentResolver resolver;
+	private final HashMap<Long, Request> inFlight = new HashMap<Long, Request>();
+	private final HashMap<Target, Request> bound = new HashMap<Target, Request>();
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/* Shared by all the loaders, so that recreating the activity does not leave idle threads behind */
+	private static ExecutorService executor;
+
+	public ThumbnailLoader(ContentResolver resolver, int maxBytes) {
+		this.resolver = resolver;
+		cache = new LruCache<Long, Entry>(maxBytes) {
+			@Override
+			protected int sizeOf(Long key, Entry value) {
+				return value.bitmap != null ? value.bitmap.getRowBytes() * value.bitmap.getHeight() : 1;
+			}
+		};
+	}
+
+	/**
+	 * @return a reasonable memory budget for the cache: 1/16th of the heap.
+	 */
+	public static int defaultBudget() {
+		return (int) (Runtime.getRuntime().maxMemory() / 16);
+	}
+
+	/**
+	 * Returns the cached thumbnail of the given map, or null if it is not
+	 * cached or out of date.
+	 */
+	public Bitmap get(long id, long lastUpdate) {
+		Entry entry = cache.get(id);
+		if (entry != null && entry.lastUpdate == lastUpdate) {
+			return entry.bitmap;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the given map is known to have no thumbnail, or one that
+	 * cannot be decoded.
+	 */
+	public boolean isMissing(long id, long lastUpdate) {
+		Entry entry = cache.get(id);
+		return entry != null && entry.lastUpdate == lastUpdate && entry.bitmap == null;
+	}
+
+	/**
+	 * Binds target to the thumbnail of the given map, detaching it from the
+	 * map it was bound to before. The thumbnail must not be cached (see
+	 * {@link #get(long, long)} and {@link #isMissing(long, long)}): it is
+	 * read and decoded, unless a load of the same version is in progress.
+	 */
+	public void load(final long id, final long lastUpdate, Target target) {
+		cancel(target);
+		Request request = inFlight.get(id);
+		if (request != null && request.lastUpdate != lastUpdate) {
+			/* An older version of the map is being decoded: nobody wants it anymore */
+			for (Target stale : request.targets) {
+				bound.remove(stale);
+			}
+			request.targets.clear();
+			request.future.cancel(false);
+			request = null;
+		}
+		if (request == null) {
+			request = new Request(id, lastUpdate);
+			inFlight.put(id, request);
+			final Request submitted = request;
+			request.future = getExecutor().submit(new Runnable() {
+				@Override
+				public void run() {
+					Bitmap result = null;
+					try {
+						result = read(id);
+					} catch (RuntimeException rex) {
+						Log.e(TAG, "unable to read the thumbnail of map " + id, rex);
+					} catch (OutOfMemoryError oom) {
+						Log.e(TAG, "out of memory decoding the thumbnail of map " + id);
+					}
+					final Bitmap bitmap = result;
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							deliver(submitted, bitmap);
+						}
+					});
+				}
+			});
+		}
+		request.targets.add(target);
+		bound.put(target, request);
+	}
+
+	/**
+	 * Detaches target from the thumbnail it is waiting for, if any.
+	 */
+	public void cancel(Target target) {
+		Request request = bound.remove(target);
+		if (request != null) {
+			request.targets.remove(target);
+			if (request.targets.isEmpty()) {
+				request.future.cancel(false);
+				if (inFlight.get(request.id) == request) {
+					inFlight.remove(request.id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the thumbnail of the given map, or null if it has none or it
+	 *         could not be decoded.
+	 */
+	private Bitmap read(long id) {
+		Uri mapUri = Uri.withAppendedPath(C.CONTENT_URI, Long.toString(id));
+		Cursor c = resolver.query(mapUri, new String[] {
+			TileMap.Columns.KEY_THUMB
+		}, null, null, null);
+		if (c == null) {
+			return null;
+		}
+		byte[] data = null;
+		try {
+			if (c.moveToFirst()) {
+				data = c.getBlob(0);
+			}
+		} finally {
+			c.close();
+		}
+		if (data == null) {
+			return null;
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length);
+	}
+
+	private void deliver(Request request, Bitmap bitmap) {
+		if (inFlight.get(request.id) == request) {
+			inFlight.remove(request.id);
+		}
+		Entry current = cache.get(request.id);
+		if (current == null || current.lastUpdate <= request.lastUpdate) {
+			cache.put(request.id, new Entry(request.lastUpdate, bitmap));
+		}
+		for (Target target : request.targets) {
+			bound.remove(target);
+			target.onThumbnailLoaded(bitmap);
+		}
+		request.targets.clear();
+	}
+
+	private static ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, TAG);
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.support.v4.util.LruCache;
+
+/**
+ * Cache of rotated and scaled tile bitmaps, ready to be drawn as they are.
+ * Entries are keyed by (tile path, angle, scale bucket): the scale is
+ * quantized so that panning never creates new bitmaps and zooming only does
+ * when crossing a bucket boundary. Buckets are linear (1/8 steps) down to
+ * 1/16, then one per power of two, so that large maps zoomed out to fit the
+ * screen are never drawn from a bitmap more than twice as large.
+ * <p>
+ * Scaled tiles are not created from the full size tile, but from the nearest
+ * level of a mip-map pyramid (1, 1/2, 1/4, ...) which is at least as large:
+ * each scaling step is then at most 2:1, so that zoomed out tiles do not
+ * alias, and it starts from a smaller bitmap. Pyramid levels are kept in the
+ * same cache.
+ */
+class TileBitmapCache {
+	/** Number of buckets for each unit of scale (i.e. 1/8 = 12.5% steps). */
+	private final static int SCALE_BUCKETS = 8;
+	/** Angle marking the levels of the pyramid in the keys. */
+	private final static byte MIP_LEVEL = -1;
+
+	private final LruCache<Key, Bitmap> cache;
+	/* Reused for lookups, so that a cache hit does not allocate anything. */
+	private final Key probe = new Key();
+	private final Matrix matrix = new Matrix();
+
+	private int hits, misses;
+
+	public TileBitmapCache(int maxBytes) {
+		cache = new LruCache<Key, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Key key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+	}
+
+	/**
+	 * @return a reasonable memory budget for the cache: 1/8th of the heap.
+	 */
+	public static int defaultBudget() {
+		return (int) (Runtime.getRuntime().maxMemory() / 8);
+	}
+
+	/**
+	 * Returns the bitmap for the given tile rotated by angle*90° and scaled to
+	 * the bucket nearest to scale. The returned bitmap must not be recycled by
+	 * the caller, and its size may differ slightly from the requested one: draw
+	 * it into a destination rect.
+	 */
+	public Bitmap get(String path, Bitmap source, byte angle, float scale) {
+		int bucket = bucketOf(scale);
+		probe.set(path, angle, bucket);
+		Bitmap bmp = cache.get(probe);
+		if (bmp == null) {
+			misses++;
+			float targetSize;
+			if (bucket > 0) {
+				targetSize = source.getWidth() * bucket / (float) SCALE_BUCKETS;
+			} else {
+				targetSize = Math.max(1f, source.getWidth() / (float) (1 << -bucket));
+			}
+			Bitmap level = getLevel(path, source, targetSize);
+			float levelScale = targetSize / level.getWidth();
+			/*
+			 * The following order and call to scale+rotate is the only one which
+			 * works...
+			 */
+			matrix.reset();
+			matrix.postRotate(90 * angle);
+			matrix.preScale(levelScale, levelScale);
+			bmp = Bitmap.createBitmap(level, 0, 0, level.getWidth(), level.getHeight(), matrix, true);
+			Key key = new Key();
+			key.set(path, angle, bucket);
+			cache.put(key, bmp);
+		} else {
+			hits++;
+		}
+		return bmp;
+	}
+
+	/**
+	 * Quantizes the given scale: positive buckets are multiples of
+	 * 1/SCALE_BUCKETS, from scale 1/16 up; below that, bucket -k stands for
+	 * scale 2^-k, the smallest power of two which is still at least scale.
+	 */
+	static int bucketOf(float scale) {
+		if (scale * 2 * SCALE_BUCKETS >= 1) {
+			return Math.max(1, Math.round(scale * SCALE_BUCKETS));
+		}
+		int k = 4;
+		while (k < 30 && scale * (1 << (k + 1)) <= 1) {
+			k++;
+		}
+		return -k;
+	}
+
+	/**
+	 * Returns the smallest level of the pyramid of the given (square) tile
+	 * which is still at least targetSize wide, creating the missing levels by
+	 * halving the previous one.
+	 */
+	private Bitmap getLevel(String path, Bitmap source, float targetSize) {
+		Bitmap level = source;
+		for (int idx = 1; level.getWidth() / 2 >= targetSize && level.getWidth() > 1; idx++) {
+			probe.set(path, MIP_LEVEL, idx);
+			Bitmap next = cache.get(probe);
+			if (next == null) {
+				next = Bitmap.createScaledBitmap(level, level.getWidth() / 2, level.getHeight() / 2, true);
+				Key key = new Key();
+				key.set(path, MIP_LEVEL, idx);
+				cache.put(key, next);
+			}
+			level = next;
+		}
+		return level;
+	}
+
+	/**
+	 * Drops every bitmap derived from the given tile.
+	 */
+	public void evict(String path) {
+		for (Key key : cache.snapshot().keySet()) {
+			if (key.path.equals(path)) {
+				cache.remove(key);
+			}
+		}
+	}
+
+	public void clear() {
+		/*
+		 * Evicted bitmaps are not recycled: they may still be referenced by a
+		 * frame being drawn. The GC will take care of them.
+		 */
+		cache.evictAll();
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	private static class Key {
+		String path;
+		byte angle;
+		int bucket;
+
+		void set(String path, byte angle, int bucket) {
+			this.path = path;
+			this.angle = angle;
+			this.bucket = bucket;
+		}
+
+		@Override
+		public int hashCode() {
+			return (path.hashCode() * 31 + angle) * 31 + bucket;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return angle == other.angle && bucket == other.bucket && path.equals(other.path);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.graphics.Bitmap;
+
+/**
+ * Decoded tile bitmaps, keyed by path and shared by every cell using the same
+ * tile. Each cell holds a reference: when the last one is released the bitmap
+ * is recycled.
+ * <p>
+ * Background work (e.g. an export) pins the bitmaps it draws: a pinned bitmap
+ * may leave the store, but is only recycled once unpinned. All the methods
+ * must be called on the UI thread.
+ */
+class TileBitmapStore {
+
+	public interface OnReleaseListener {
+		/**
+		 * Called when the last reference to path is released, before its bitmap
+		 * is recycled.
+		 */
+		public void onTileReleased(String path);
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	/* Pin count of each pinned bitmap */
+	private final HashMap<Bitmap, Integer> pins = new HashMap<Bitmap, Integer>();
+	/* Pinned bitmaps which left the store, to be recycled when unpinned */
+	private final HashSet<Bitmap> released = new HashSet<Bitmap>();
+	private final OnReleaseListener listener;
+
+	public TileBitmapStore(OnReleaseListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Adds a reference to the given tile.
+	 *
+	 * @return true if the bitmap of the tile is not available yet and has to be
+	 *         loaded (see {@link #put(String, Bitmap)}).
+	 */
+	public boolean acquire(String path) {
+		Entry e = entries.get(path);
+		if (e == null) {
+			e = new Entry();
+			entries.put(path, e);
+		}
+		e.refs++;
+		return e.bitmap == null;
+	}
+
+	/**
+	 * Removes a reference to the given tile, recycling its bitmap if it was the
+	 * last one.
+	 */
+	public void release(String path) {
+		Entry e = entries.get(path);
+		if (e != null && --e.refs == 0) {
+			remove(path);
+		}
+	}
+
+	/**
+	 * Stores the decoded bitmap of the given tile.
+	 *
+	 * @return false if the tile is not referenced anymore: the bitmap has been
+	 *         recycled.
+	 */
+	public boolean put(String path, Bitmap bitmap) {
+		Entry e = entries.get(path);
+		if (e == null) {
+			bitmap.recycle();
+			return false;
+		}
+		e.bitmap = bitmap;
+		return true;
+	}
+
+	/**
+	 * @return the bitmap of the given tile, or null if it is not loaded (yet).
+	 */
+	public Bitmap get(String path) {
+		Entry e = entries.get(path);
+		return e == null ? null : e.bitmap;
+	}
+
+	/**
+	 * Pins the bitmap of the given tile, see {@link #unpin(Bitmap)}.
+	 *
+	 * @return the bitmap, or null if it is not loaded (yet): nothing is pinned.
+	 */
+	public Bitmap pin(String path) {
+		Bitmap bitmap = get(path);
+		if (bitmap != null) {
+			Integer count = pins.get(bitmap);
+			pins.put(bitmap, count == null ? 1 : count + 1);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Unpins a bitmap returned by {@link #pin(String)}, recycling it if it left
+	 * the store meanwhile.
+	 */
+	public void unpin(Bitmap bitmap) {
+		Integer count = pins.get(bitmap);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			pins.put(bitmap, count - 1);
+		} else {
+			pins.remove(bitmap);
+			if (released.remove(bitmap)) {
+				bitmap.recycle();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the tile is referenced but its bitmap is not available.
+	 */
+	public boolean isLoading(String path) {
+		Entry e = entries.get(path);
+		return e != null && e.bitmap == null;
+	}
+
+	/**
+	 * Drops every reference to the given tile at once, e.g. when it cannot be
+	 * loaded.
+	 */
+	public void remove(String path) {
+		Entry e = entries.remove(path);
+		if (e != null && e.bitmap != null) {
+			listener.onTileReleased(path);
+			if (pins.containsKey(e.bitmap)) {
+				released.add(e.bitmap);
+			} else {
+				e.bitmap.recycle();
+			}
+		}
+	}
+
+	/**
+	 * Drops every tile, e.g. when a different map is loaded.
+	 */
+	public void clear() {
+		for (String path : entries.keySet().toArray(new String[entries.size()])) {
+			remove(path);
+		}
+	}
+
+	private static class Entry {
+		Bitmap bitmap;
+		int refs;
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Decodes tile images on a small pool of background threads. Requests are
+ * deduplicated by path: while a tile is being decoded, further requests for
+ * the same path are ignored, so a map with hundreds of cells sharing the same
+ * image decodes it only once. Results are delivered on the UI thread.
+ */
+class TileLoader {
+	private final static String TAG = TileLoader.class.getSimpleName();
+
+	/** Decoding is mostly I/O and memory bound: a couple of threads is enough. */
+	private final static int THREADS = 2;
+	/** Upper bound of the area of a decoded image, in tiles. */
+	private final static int MAX_DECODED_TILES = 4;
+
+	public interface Callback {
+		/**
+		 * Called on the UI thread when a tile has been decoded.
+		 *
+		 * @param bitmap
+		 *          the tile, scaled to the size of a tile, or null if it could not
+		 *          be loaded.
+		 */
+		public void onTileLoaded(String path, Bitmap bitmap);
+	}
+
+	private final Context context;
+	private final int tileSize;
+	private final Callback callback;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/* Only accessed on the UI thread */
+	private final HashSet<String> pending = new HashSet<String>();
+	private ExecutorService executor;
+
+	public TileLoader(Context context, int tileSize, Callback callback) {
+		this.context = context.getApplicationContext();
+		this.tileSize = tileSize;
+		this.callback = callback;
+	}
+
+	/**
+	 * Schedules the decoding of the given tile, unless it is already in
+	 * progress. Must be called on the UI thread.
+	 */
+	public void load(final String path) {
+		if (!pending.add(path)) {
+			return;
+		}
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, TAG);
+				}
+			});
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap bitmap = null;
+				try {
+					bitmap = decode(path);
+				} catch (IOException ioex) {
+					Log.w(TAG, "unable to load " + path, ioex);
+				} catch (RuntimeException rex) {
+					/* e.g. SecurityException from a content provider */
+					Log.w(TAG, "unable to load " + path, rex);
+				} catch (OutOfMemoryError oome) {
+					Log.w(TAG, "not enough memory to load " + path, oome);
+				} finally {
+					/* Always reported, so that the path is never left pending */
+					final Bitmap result = bitmap;
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (!pending.remove(path)) {
+								/* Shut down meanwhile: the tile is requested again on restart */
+								if (result != null) {
+									result.recycle();
+								}
+								return;
+							}
+							callback.onTileLoaded(path, result);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decodes the given tile on the calling thread, which must not be the UI
+	 * thread, regardless of the requests in progress: used when the whole map
+	 * has to be rendered right away (export, thumbnail) while some of its tiles
+	 * are still pending. The caller owns the returned bitmap.
+	 *
+	 * @return the tile, scaled to the size of a tile, or null if it could not be
+	 *         loaded.
+	 */
+	public Bitmap loadNow(String path) {
+		try {
+			return decode(path);
+		} catch (IOException ioex) {
+			Log.w(TAG, "unable to load " + path, ioex);
+		} catch (RuntimeException rex) {
+			Log.w(TAG, "unable to load " + path, rex);
+		}
+		return null;
+	}
+
+	public boolean isLoading(String path) {
+		return pending.contains(path);
+	}
+
+	/**
+	 * Stops the worker threads; tiles being decoded are discarded. A following
+	 * call to {@link #load(String)} starts them again.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		handler.removeCallbacksAndMessages(null);
+		pending.clear();
+	}
+
+	private InputStream open(String path) throws IOException {
+		if (path.startsWith("assets:")) {
+			// 7 = "assets:".length();
+			return context.getAssets().open(path.substring(7));
+		} else if (path.startsWith("content:")) {
+			Uri uri = Uri.parse(path);
+			InputStream is = context.getContentResolver().openInputStream(uri);
+			if (is == null) {
+				throw new IOException("unable to open " + path);
+			}
+			return is;
+		} else {
+			throw new IOException("unsupported path " + path);
+		}
+	}
+
+	private static void close(InputStream is) {
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException ioex) {
+				ioex.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Decodes the given tile, scaling it to the size of a tile.
+	 * <p>
+	 * The size of the image is read first, so that large images (e.g. photos
+	 * picked from the gallery) are subsampled while decoding instead of being
+	 * decoded at full resolution and scaled down afterwards. Images so elongated
+	 * that the area limit would blur their short side are decoded band by
+	 * band, where BitmapRegionDecoder is available.
+	 */
+	private Bitmap decode(String path) throws IOException {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		InputStream is = open(path);
+		try {
+			BitmapFactory.decodeStream(is, null, opts);
+		} finally {
+			close(is);
+		}
+		if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+			throw new IOException("unable to decode " + path);
+		}
+
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = sampleSizeFor(opts.outWidth, opts.outHeight, tileSize);
+		int fullSampleSize = fullSampleSizeFor(opts.outWidth, opts.outHeight, tileSize);
+		if (opts.inSampleSize > fullSampleSize && Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
+			is = open(path);
+			try {
+				Bitmap tile = RegionDecoder.decode(is, opts.outWidth, opts.outHeight, fullSampleSize, tileSize);
+				if (tile != null) {
+					return tile;
+				}
+			} finally {
+				close(is);
+			}
+		}
+		Bitmap reusable = null;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			reusable = BitmapPool.prepare(opts);
+		}
+		Bitmap source;
+		is = open(path);
+		try {
+			source = BitmapFactory.decodeStream(is, null, opts);
+		} catch (IllegalArgumentException iaex) {
+			if (reusable == null) {
+				throw iaex;
+			}
+			/* The pooled bitmap could not be reused after all: decode again. */
+			close(is);
+			is = open(path);
+			reusable.recycle();
+			BitmapPool.clear(opts);
+			source = BitmapFactory.decodeStream(is, null, opts);
+		} finally {
+			close(is);
+		}
+		if (source == null) {
+			throw new IOException("unable to decode " + path);
+		}
+		Bitmap scaled = Bitmap.createScaledBitmap(source, tileSize, tileSize, true);
+		if (scaled != source) {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				/* Only a scratch buffer: give it back for the next decode. */
+				BitmapPool.release(source);
+			} else {
+				source.recycle();
+			}
+		}
+		return scaled;
+	}
+
+	/**
+	 * Returns the largest power of two which keeps both sides of the decoded
+	 * image at least as large as a tile. Images with an extreme aspect ratio are
+	 * subsampled further, so that the decoded image never exceeds
+	 * MAX_DECODED_TILES times the area of a tile.
+	 */
+	static int sampleSizeFor(int width, int height, int tileSize) {
+		int sampleSize = fullSampleSizeFor(width, height, tileSize);
+		long maxPixels = (long) MAX_DECODED_TILES * tileSize * tileSize;
+		while ((long) (width / sampleSize) * (height / sampleSize) > maxPixels) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/**
+	 * Returns the largest power of two which keeps both sides of the decoded
+	 * image at least as large as a tile.
+	 */
+	static int fullSampleSizeFor(int width, int height, int tileSize) {
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= tileSize && height / (sampleSize * 2) >= tileSize) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/*
+	 * Decodes elongated images in bands along their long side, each one within
+	 * the area limit, and scales them straight into the tile: the short side
+	 * keeps its full resolution. BitmapRegionDecoder only exists on Gingerbread
+	 * MR1 and later: in its own class so that it is never touched before.
+	 */
+	private static class RegionDecoder {
+		/**
+		 * @return the tile, or null if the image is not in a format supported by
+		 *         BitmapRegionDecoder (JPEG or PNG).
+		 */
+		static Bitmap decode(InputStream is, int width, int height, int sampleSize, int tileSize) {
+			BitmapRegionDecoder decoder;
+			try {
+				decoder = BitmapRegionDecoder.newInstance(is, false);
+			} catch (IOException ioex) {
+				return null;
+			}
+			try {
+				boolean horizontal = width >= height;
+				int length = horizontal ? width : height;
+				int breadth = horizontal ? height : width;
+				long maxPixels = (long) MAX_DECODED_TILES * tileSize * tileSize;
+				/* Length of a band in source pixels, a multiple of the sample size */
+				int band = (int) Math.min(length, Math.max(1, maxPixels / Math.max(1, breadth / sampleSize)) * sampleSize);
+				float ratio = tileSize / (float) length;
+
+				Bitmap tile = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+				Canvas canvas = new Canvas(tile);
+				Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+				BitmapFactory.Options opts = new BitmapFactory.Options();
+				opts.inSampleSize = sampleSize;
+				Rect src = new Rect();
+				RectF dst = new RectF();
+				for (int start = 0; start < length; start += band) {
+					int end = Math.min(length, start + band);
+					if (horizontal) {
+						src.set(start, 0, end, height);
+						dst.set(start * ratio, 0, end * ratio, tileSize);
+					} else {
+						src.set(0, start, width, end);
+						dst.set(0, start * ratio, tileSize, end * ratio);
+					}
+					Bitmap part = decoder.decodeRegion(src, opts);
+					if (part == null) {
+						tile.recycle();
+						return null;
+					}
+					canvas.drawBitmap(part, null, dst, paint);
+					part.recycle();
+				}
+				return tile;
+			} finally {
+				decoder.recycle();
+			}
+		}
+	}
+
+	/*
+	 * Scratch bitmaps for BitmapFactory.Options.inBitmap, which only exists on
+	 * Honeycomb and later: in its own class so that it is never touched before.
+	 */
+	private static class BitmapPool {
+		private final static int MAX_SIZE = THREADS * 2;
+		private final static ArrayList<Bitmap> pool = new ArrayList<Bitmap>(MAX_SIZE);
+
+		/**
+		 * Sets up opts so that the decoded bitmap is mutable and, if possible,
+		 * reuses a pooled bitmap.
+		 *
+		 * @return the pooled bitmap being reused, or null.
+		 */
+		static Bitmap prepare(BitmapFactory.Options opts) {
+			opts.inMutable = true;
+			int width = (opts.outWidth + opts.inSampleSize - 1) / opts.inSampleSize;
+			int height = (opts.outHeight + opts.inSampleSize - 1) / opts.inSampleSize;
+			synchronized (pool) {
+				for (int i = 0; i < pool.size(); i++) {
+					Bitmap candidate = pool.get(i);
+					if (canReuse(candidate, width, height, opts.inSampleSize)) {
+						pool.remove(i);
+						opts.inBitmap = candidate;
+						return candidate;
+					}
+				}
+			}
+			return null;
+		}
+
+		static void clear(BitmapFactory.Options opts) {
+			opts.inBitmap = null;
+		}
+
+		/**
+		 * Before KitKat a bitmap can only be reused by an image of the very same
+		 * size, decoded without subsampling; afterwards any large enough bitmap
+		 * will do.
+		 */
+		private static boolean canReuse(Bitmap candidate, int width, int height, int sampleSize) {
+			if (Build.VERSION.SDK_INT >= 19 /* KITKAT */) {
+				return (long) width * height * 4 <= (long) candidate.getRowBytes() * candidate.getHeight();
+			}
+			return sampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height;
+		}
+
+		static void release(Bitmap bitmap) {
+			if (bitmap == null) {
+				return;
+			}
+			synchronized (pool) {
+				if (bitmap.isMutable() && pool.size() < MAX_SIZE) {
+					pool.add(bitmap);
+					return;
+				}
+			}
+			bitmap.recycle();
+		}
+	}
+}
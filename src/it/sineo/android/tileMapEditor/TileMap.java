@@ -16,11 +16,14 @@
 
 package it.sineo.android.tileMapEditor;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 
-import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.os.Bundle;
 import android.provider.BaseColumns;
 
@@ -31,13 +34,26 @@ public class TileMap {
 		 */
 		public static final String KEY_ROWID = "_id";
 		public static final String KEY_NAME = "_name";
+		/** Legacy JSON representation, only read when upgrading the database. */
 		public static final String KEY_JSON_DATA = "_json_data";
+		/** Binary representation, see {@link TileMap#toBinary()}. */
+		public static final String KEY_DATA = "_data";
 		public static final String KEY_LAST_UPDATE = "_last_update";
 		public static final String KEY_THUMB = "_thumb";
 	}
 
+	/** Value of an empty cell. */
+	public final static int EMPTY = 0;
+	/* The angle is packed in the two topmost bits of a cell. */
+	private final static int ANGLE_SHIFT = 30;
+	private final static int PALETTE_MASK = (1 << ANGLE_SHIFT) - 1;
+
+	/* Binary format: "TMAP" followed by the version */
+	private final static int BINARY_MAGIC = 0x544d4150;
+	private final static int BINARY_VERSION = 1;
+
 	String name;
-	/* Map info, mapped to JSON data */
+	/* Map info, stored in the map data */
 	int rows;
 	int columns;
 
@@ -45,40 +61,185 @@ public class TileMap {
 	float xOff = 0;
 	float yOff = 0;
 
-	String[][] tilePaths;
-	byte[][] tileAngles;
+	/*
+	 * Cells are stored row-major (index = row * columns + column): each one is
+	 * either EMPTY or the index of its tile in the palette plus one, with the
+	 * angle (in 90° steps) in the upper bits.
+	 */
+	int[] cells;
+	/* Paths of the tiles used by the map, each one stored only once */
+	ArrayList<String> palette;
 	/* Transient data */
-	transient Bitmap[][] tileBitmaps;
-	transient Matrix[][] tileMatrices;
+	transient HashMap<String, Integer> paletteLookup;
+
+	public static int paletteIndexOf(int cell) {
+		return (cell & PALETTE_MASK) - 1;
+	}
+
+	public static byte angleOf(int cell) {
+		return (byte) (cell >>> ANGLE_SHIFT);
+	}
+
+	private static int cellOf(int paletteIndex, byte angle) {
+		return ((angle & 3) << ANGLE_SHIFT) | (paletteIndex + 1);
+	}
+
+	public int getCell(int row, int column) {
+		return cells[row * columns + column];
+	}
+
+	public boolean isEmpty(int row, int column) {
+		return cells[row * columns + column] == EMPTY;
+	}
+
+	/**
+	 * @return the path of the tile at (row, column), or null if the cell is
+	 *         empty.
+	 */
+	public String getPath(int row, int column) {
+		int cell = cells[row * columns + column];
+		return cell == EMPTY ? null : palette.get(paletteIndexOf(cell));
+	}
+
+	public byte getAngle(int row, int column) {
+		return angleOf(cells[row * columns + column]);
+	}
+
+	/**
+	 * Returns the palette index of path, adding it to the palette if needed.
+	 */
+	public int intern(String path) {
+		Integer idx = paletteLookup.get(path);
+		if (idx == null) {
+			idx = palette.size();
+			palette.add(path);
+			paletteLookup.put(path, idx);
+		}
+		return idx;
+	}
+
+	public void setTile(int row, int column, int paletteIndex, byte angle) {
+		cells[row * columns + column] = cellOf(paletteIndex, angle);
+	}
+
+	public void clearTile(int row, int column) {
+		cells[row * columns + column] = EMPTY;
+	}
+
+	/**
+	 * Empties every cell using the given palette entry.
+	 */
+	public void clearTiles(int paletteIndex) {
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i] != EMPTY && paletteIndexOf(cells[i]) == paletteIndex) {
+				cells[i] = EMPTY;
+			}
+		}
+	}
+
+	public void rotateTile(int row, int column) {
+		int i = row * columns + column;
+		if (cells[i] != EMPTY) {
+			cells[i] = cellOf(paletteIndexOf(cells[i]), (byte) (angleOf(cells[i]) + 1));
+		}
+	}
+
+	private void initGrid() {
+		cells = new int[rows * columns];
+		palette = new ArrayList<String>();
+		paletteLookup = new HashMap<String, Integer>();
+	}
 
 	/**
-	 * Returns a JSON representation of this map. No transient data is stored.
+	 * Returns a binary representation of this map. No transient data is stored.
+	 * The layout is:
+	 * <ul>
+	 * <li>magic number and format version;</li>
+	 * <li>name, size, scale and offsets;</li>
+	 * <li>palette: number of entries, then each path;</li>
+	 * <li>cells, run-length encoded as (count, cell) pairs of varints, where a
+	 * cell is (palette index + 1) &lt;&lt; 2 | angle, or 0 if empty.</li>
+	 * </ul>
+	 * Only the palette entries actually in use are stored.
 	 * 
 	 * @return
 	 */
-	public String toJSON() {
-		JSONObject o = new JSONObject();
+	public byte[] toBinary() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64 + cells.length / 4);
+		DataOutputStream dos = new DataOutputStream(baos);
 		try {
-			o.put("name", name);
-
-			o.put("rows", rows);
-			o.put("columns", columns);
-			o.put("scale", scale);
-			o.put("xOff", xOff);
-			o.put("yOff", yOff);
-			for (int idxRow = 0; idxRow < rows; idxRow++) {
-				for (int idxCol = 0; idxCol < columns; idxCol++) {
-					if (tilePaths[idxRow][idxCol] != null) {
-						o.put("paths_" + idxRow + "_" + idxCol, tilePaths[idxRow][idxCol]);
-						o.put("angles_" + idxRow + "_" + idxCol, tileAngles[idxRow][idxCol]);
-					}
+			dos.writeInt(BINARY_MAGIC);
+			dos.writeByte(BINARY_VERSION);
+			dos.writeBoolean(name != null);
+			if (name != null) {
+				dos.writeUTF(name);
+			}
+			writeVarInt(dos, rows);
+			writeVarInt(dos, columns);
+			dos.writeFloat(scale);
+			dos.writeFloat(xOff);
+			dos.writeFloat(yOff);
+
+			/* Compact the palette, dropping unused entries */
+			int[] remap = new int[palette.size()];
+			int used = 0;
+			for (int cell : cells) {
+				if (cell != EMPTY && remap[paletteIndexOf(cell)] == 0) {
+					remap[paletteIndexOf(cell)] = ++used;
+				}
+			}
+			String[] usedPaths = new String[used];
+			for (int idx = 0; idx < remap.length; idx++) {
+				if (remap[idx] != 0) {
+					usedPaths[remap[idx] - 1] = palette.get(idx);
 				}
 			}
-		} catch (JSONException jsonex) {
-			jsonex.printStackTrace();
+			writeVarInt(dos, used);
+			for (String path : usedPaths) {
+				dos.writeUTF(path);
+			}
+
+			int runCell = -1, runLength = 0;
+			for (int cell : cells) {
+				int packed = cell == EMPTY ? 0 : (remap[paletteIndexOf(cell)] << 2) | angleOf(cell);
+				if (packed != runCell && runLength > 0) {
+					writeVarInt(dos, runLength);
+					writeVarInt(dos, runCell);
+					runLength = 0;
+				}
+				runCell = packed;
+				runLength++;
+			}
+			if (runLength > 0) {
+				writeVarInt(dos, runLength);
+				writeVarInt(dos, runCell);
+			}
+			dos.flush();
+		} catch (IOException ioex) {
+			/* Cannot happen on a ByteArrayOutputStream. */
+			ioex.printStackTrace();
 		}
-		String json = o.toString();
-		return json;
+		return baos.toByteArray();
+	}
+
+	private static void writeVarInt(DataOutputStream dos, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			dos.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dos.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream dis) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = dis.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed varint");
 	}
 
 	/**
@@ -95,14 +256,8 @@ public class TileMap {
 		b.putFloat("scale", scale);
 		b.putFloat("xOff", xOff);
 		b.putFloat("yOff", yOff);
-		for (int idxRow = 0; idxRow < rows; idxRow++) {
-			for (int idxCol = 0; idxCol < columns; idxCol++) {
-				if (tilePaths[idxRow][idxCol] != null) {
-					b.putString("paths_" + idxRow + "_" + idxCol, tilePaths[idxRow][idxCol]);
-					b.putByte("angles_" + idxRow + "_" + idxCol, tileAngles[idxRow][idxCol]);
-				}
-			}
-		}
+		b.putStringArrayList("palette", palette);
+		b.putIntArray("cells", cells);
 		return b;
 	}
 
@@ -113,51 +268,68 @@ public class TileMap {
 		columns = b.getInt("columns");
 		scale = b.getFloat("scale");
 		xOff = b.getFloat("xOff");
-		yOff = b.getFloat("yoff");
-
-		tilePaths = new String[rows][columns];
-		tileBitmaps = new Bitmap[rows][columns];
-		tileAngles = new byte[rows][columns];
-		tileMatrices = new Matrix[rows][columns];
-
-		for (int idxRow = 0; idxRow < rows; idxRow++) {
-			for (int idxCol = 0; idxCol < columns; idxCol++) {
-				if (b.containsKey("paths_" + idxRow + "_" + idxCol)) {
-					tilePaths[idxRow][idxCol] = b.getString("paths_" + idxRow + "_" + idxCol);
-					tileAngles[idxRow][idxCol] = b.getByte("angles_" + idxRow + "_" + idxCol);
-				}
-			}
+		yOff = b.getFloat("yOff");
+
+		initGrid();
+		for (String path : b.getStringArrayList("palette")) {
+			intern(path);
 		}
+		int[] savedCells = b.getIntArray("cells");
+		System.arraycopy(savedCells, 0, cells, 0, cells.length);
 	}
 
-	public TileMap(String json) {
-		try {
-			JSONObject o = new JSONObject(json);
-
-			name = o.getString("name");
-
-			rows = o.getInt("rows");
-			columns = o.getInt("columns");
-			scale = (float) o.getDouble("scale");
-			xOff = (float) o.getDouble("xOff");
-			yOff = (float) o.getDouble("yOff");
-
-			tilePaths = new String[rows][columns];
-			tileBitmaps = new Bitmap[rows][columns];
-			tileAngles = new byte[rows][columns];
-			tileMatrices = new Matrix[rows][columns];
-
-			for (int idxRow = 0; idxRow < rows; idxRow++) {
-				for (int idxCol = 0; idxCol < columns; idxCol++) {
-					if (o.has("paths_" + idxRow + "_" + idxCol)) {
-						tilePaths[idxRow][idxCol] = o.getString("paths_" + idxRow + "_" + idxCol);
-						tileAngles[idxRow][idxCol] = (byte) o.getInt("angles_" + idxRow + "_" + idxCol);
-					}
-				}
+	/**
+	 * Decodes a map written by {@link #toBinary()}.
+	 * 
+	 * @throws IOException
+	 *           if the data is missing, truncated or otherwise malformed: no
+	 *           partially decoded map is ever returned.
+	 */
+	public TileMap(byte[] data) throws IOException {
+		if (data == null) {
+			throw new IOException("no data");
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		if (dis.readInt() != BINARY_MAGIC) {
+			throw new IOException("not a map");
+		}
+		int version = dis.readUnsignedByte();
+		if (version != BINARY_VERSION) {
+			throw new IOException("unsupported version " + version);
+		}
+		if (dis.readBoolean()) {
+			name = dis.readUTF();
+		}
+		rows = readVarInt(dis);
+		columns = readVarInt(dis);
+		if (rows <= 0 || columns <= 0 || (long) rows * columns > Integer.MAX_VALUE) {
+			throw new IOException("malformed size " + rows + "x" + columns);
+		}
+		scale = dis.readFloat();
+		xOff = dis.readFloat();
+		yOff = dis.readFloat();
+
+		initGrid();
+
+		int paletteSize = readVarInt(dis);
+		for (int idx = 0; idx < paletteSize; idx++) {
+			intern(dis.readUTF());
+		}
+		int i = 0;
+		while (i < cells.length) {
+			int runLength = readVarInt(dis);
+			int packed = readVarInt(dis);
+			int paletteIndex = (packed >>> 2) - 1;
+			if (packed != 0 && paletteIndex >= palette.size()) {
+				throw new IOException("palette index out of range: " + paletteIndex);
+			}
+			int cell = packed == 0 ? EMPTY : cellOf(paletteIndex, (byte) (packed & 3));
+			if (runLength <= 0 || i + runLength > cells.length) {
+				throw new IOException("malformed cells");
+			}
+			for (int end = i + runLength; i < end; i++) {
+				cells[i] = cell;
 			}
-		} catch (JSONException jsonex) {
-			/* This cannot happen, unless the object was tampered with. */
-			jsonex.printStackTrace();
 		}
 	}
 
@@ -165,9 +337,6 @@ public class TileMap {
 		this.rows = rows;
 		this.columns = columns;
 
-		tilePaths = new String[rows][columns];
-		tileBitmaps = new Bitmap[rows][columns];
-		tileAngles = new byte[rows][columns];
-		tileMatrices = new Matrix[rows][columns];
+		initGrid();
 	}
 }
\ No newline at end of file
@@ -16,9 +16,11 @@
 
 package it.sineo.android.tileMapEditor;
 
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -27,7 +29,9 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Environment;
 import android.util.Log;
 
 public class TileMapContentProvider extends ContentProvider {
@@ -84,25 +88,6 @@ public class TileMapContentProvider extends ContentProvider {
 			}
 			int deleted = db.delete(C.DATABASE_TABLE, where, whereArgs);
 			// db.close();
-			/* Thumbnails */
-			File thumbDir = Util.getExternalThumbnailsDirectory();
-			if (mapId == null) {
-				File[] thumbNails = thumbDir.listFiles(new FilenameFilter() {
-					@Override
-					public boolean accept(File dir, String filename) {
-						return filename.startsWith("tn_");
-					}
-				});
-				for (File thumbFile : thumbNails) {
-					if (thumbFile.exists())
-						thumbFile.delete();
-				}
-			} else {
-				File thumbFile = new File(thumbDir, "tn_" + mapId + ".png");
-				if (thumbFile.exists()) {
-					thumbFile.delete();
-				}
-			}
 			getContext().getContentResolver().notifyChange(uri, null);
 			// getContext().getContentResolver().notifyChange(C.CONTENT_URI, null);
 			return deleted;
@@ -116,21 +101,15 @@ public class TileMapContentProvider extends ContentProvider {
 		if (uriMatcher.match(uri) == C.MATCH_MAPS) {
 			ContentValues dbValues = new ContentValues();
 			dbValues.put(TileMap.Columns.KEY_NAME, initialValues.getAsString(TileMap.Columns.KEY_NAME));
-			dbValues.put(TileMap.Columns.KEY_JSON_DATA, initialValues.getAsString(TileMap.Columns.KEY_JSON_DATA));
+			dbValues.put(TileMap.Columns.KEY_DATA, initialValues.getAsByteArray(TileMap.Columns.KEY_DATA));
+			/* Legacy column, NOT NULL on databases created by older versions */
+			dbValues.put(TileMap.Columns.KEY_JSON_DATA, "");
+			dbValues.put(TileMap.Columns.KEY_THUMB, initialValues.getAsByteArray(TileMap.Columns.KEY_THUMB));
 			dbValues.put(TileMap.Columns.KEY_LAST_UPDATE, System.currentTimeMillis());
 
 			SQLiteDatabase db = dbHelper.getWritableDatabase();
 			long mapId = db.insert(C.DATABASE_TABLE, null, dbValues);
 			Uri newUri = Uri.withAppendedPath(C.CONTENT_URI, Long.toString(mapId));
-			/* Create the thumbnail on the filesystem */
-			try {
-				File thumbFile = new File(Util.getExternalThumbnailsDirectory(), "tn_" + mapId + ".png");
-				FileOutputStream fos = new FileOutputStream(thumbFile);
-				fos.write(initialValues.getAsByteArray(TileMap.Columns.KEY_THUMB));
-				fos.close();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
 
 			getContext().getContentResolver().notifyChange(uri, null);
 			return newUri;
@@ -150,7 +129,10 @@ public class TileMapContentProvider extends ContentProvider {
 
 			ContentValues dbValues = new ContentValues();
 			dbValues.put(TileMap.Columns.KEY_NAME, initialValues.getAsString(TileMap.Columns.KEY_NAME));
-			dbValues.put(TileMap.Columns.KEY_JSON_DATA, initialValues.getAsString(TileMap.Columns.KEY_JSON_DATA));
+			dbValues.put(TileMap.Columns.KEY_DATA, initialValues.getAsByteArray(TileMap.Columns.KEY_DATA));
+			/* Legacy column, NOT NULL on databases created by older versions */
+			dbValues.put(TileMap.Columns.KEY_JSON_DATA, "");
+			dbValues.put(TileMap.Columns.KEY_THUMB, initialValues.getAsByteArray(TileMap.Columns.KEY_THUMB));
 			dbValues.put(TileMap.Columns.KEY_LAST_UPDATE, System.currentTimeMillis());
 
 			selection = TileMap.Columns.KEY_ROWID + "=?";
@@ -160,15 +142,6 @@ public class TileMapContentProvider extends ContentProvider {
 
 			int updated = db.update(C.DATABASE_TABLE, dbValues, selection, selectionArgs);
 
-			/* Create the thumbnail on the filesystem */
-			try {
-				File thumbFile = new File(Util.getExternalThumbnailsDirectory(), "tn_" + mapId + ".png");
-				FileOutputStream fos = new FileOutputStream(thumbFile);
-				fos.write(initialValues.getAsByteArray(TileMap.Columns.KEY_THUMB));
-				fos.close();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
 			/* Notify observers */
 			getContext().getContentResolver().notifyChange(uri, null);
 			// getContext().getContentResolver().notifyChange(C.CONTENT_URI, null);
@@ -185,7 +158,13 @@ public class TileMapContentProvider extends ContentProvider {
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
 		switch (uriMatcher.match(uri)) {
 			case C.MATCH_MAPS:
+				break;
 			case C.MATCH_MAP_ID:
+				/* Single map: ensure the given argument is a long through parse+toString */
+				selection = TileMap.Columns.KEY_ROWID + "=?";
+				selectionArgs = new String[] {
+					Long.decode(uri.getLastPathSegment()).toString()
+				};
 				break;
 
 			default:
@@ -218,7 +197,158 @@ public class TileMapContentProvider extends ContentProvider {
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// Nothing to do.
+			if (oldVersion < 2) {
+				/* Convert maps from the JSON format to the binary one */
+				db.execSQL(context.getString(R.string.sql_ddl_upgrade_2));
+				Cursor c = db.query(C.DATABASE_TABLE, new String[] {
+					TileMap.Columns.KEY_ROWID
+				}, null, null, null, null, null);
+				try {
+					ContentValues values = new ContentValues();
+					String[] whereArgs = new String[1];
+					while (c.moveToNext()) {
+						whereArgs[0] = Long.toString(c.getLong(0));
+						try {
+							TileMap map = TileMapJsonReader.read(new JsonColumnReader(db, c.getLong(0)));
+							values.put(TileMap.Columns.KEY_DATA, map.toBinary());
+							values.put(TileMap.Columns.KEY_JSON_DATA, "");
+							db.update(C.DATABASE_TABLE, values, TileMap.Columns.KEY_ROWID + "=?", whereArgs);
+						} catch (IOException ioex) {
+							/*
+							 * Leave the row as it is, rather than losing the whole upgrade: it
+							 * keeps its JSON, and opening it reports an error (no _data).
+							 */
+							Log.e(TAG, "unable to convert map " + whereArgs[0], ioex);
+						} catch (RuntimeException rex) {
+							Log.e(TAG, "unable to convert map " + whereArgs[0], rex);
+						}
+					}
+				} finally {
+					c.close();
+				}
+			}
+			if (oldVersion < 3) {
+				/* The thumbnails are moved into the database by onOpen() */
+				db.execSQL(context.getString(R.string.sql_ddl_upgrade_3));
+			}
+		}
+
+		@Override
+		public void onOpen(SQLiteDatabase db) {
+			if (!db.isReadOnly()) {
+				migrateThumbnails(db);
+			}
+		}
+
+		/**
+		 * Moves the thumbnails from one file per map into the database. The
+		 * external storage may be missing when the database is upgraded, so this
+		 * is tried again on every open until the old directory is gone. It is
+		 * only deleted once every thumbnail is in the database.
+		 */
+		private static void migrateThumbnails(SQLiteDatabase db) {
+			if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+				return;
+			}
+			File thumbDir = Util.getExternalThumbnailsDirectory();
+			if (!thumbDir.isDirectory()) {
+				return;
+			}
+			boolean migrated = true;
+			Cursor c = db.query(C.DATABASE_TABLE, new String[] {
+				TileMap.Columns.KEY_ROWID
+			}, TileMap.Columns.KEY_THUMB + " IS NULL", null, null, null, null);
+			try {
+				ContentValues values = new ContentValues();
+				String[] whereArgs = new String[1];
+				while (c.moveToNext()) {
+					whereArgs[0] = Long.toString(c.getLong(0));
+					File thumbFile = new File(thumbDir, "tn_" + whereArgs[0] + ".png");
+					if (thumbFile.exists()) {
+						try {
+							values.put(TileMap.Columns.KEY_THUMB, readFile(thumbFile));
+							if (db.update(C.DATABASE_TABLE, values, TileMap.Columns.KEY_ROWID + "=?", whereArgs) == 0) {
+								migrated = false;
+							}
+						} catch (IOException ioex) {
+							/* Keep the file, so that this row is tried again */
+							ioex.printStackTrace();
+							migrated = false;
+						}
+					}
+				}
+			} finally {
+				c.close();
+			}
+			if (migrated) {
+				File[] files = thumbDir.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				thumbDir.delete();
+			} else {
+				Log.w(TAG, "some thumbnails could not be moved into the database, will retry");
+			}
+		}
+
+		/**
+		 * Reads the legacy JSON of a map in chunks, so that the document is never
+		 * held in memory as a whole, nor has to fit in a cursor window.
+		 */
+		private static class JsonColumnReader extends Reader {
+			private final static int CHUNK_LENGTH = 8192;
+			private final SQLiteStatement statement;
+			private String chunk = "";
+			private int chunkPos;
+			/* Position of the next chunk, in characters from 1 as for substr() */
+			private long next = 1;
+
+			JsonColumnReader(SQLiteDatabase db, long rowId) {
+				statement = db.compileStatement("SELECT substr(" + TileMap.Columns.KEY_JSON_DATA + ", ?, " + CHUNK_LENGTH
+						+ ") FROM " + C.DATABASE_TABLE + " WHERE " + TileMap.Columns.KEY_ROWID + "=?");
+				statement.bindLong(2, rowId);
+			}
+
+			@Override
+			public int read(char[] buf, int offset, int count) throws IOException {
+				if (chunkPos == chunk.length()) {
+					if (next == -1) {
+						return -1;
+					}
+					statement.bindLong(1, next);
+					String value = statement.simpleQueryForString();
+					if (value == null || value.length() == 0) {
+						next = -1;
+						return -1;
+					}
+					chunk = value;
+					chunkPos = 0;
+					/* SQLite counts code points, not UTF-16 units */
+					next += value.codePointCount(0, value.length());
+				}
+				int n = Math.min(count, chunk.length() - chunkPos);
+				chunk.getChars(chunkPos, chunkPos + n, buf, offset);
+				chunkPos += n;
+				return n;
+			}
+
+			@Override
+			public void close() {
+				statement.close();
+			}
+		}
+
+		private static byte[] readFile(File file) throws IOException {
+			byte[] data = new byte[(int) file.length()];
+			DataInputStream dis = new DataInputStream(new FileInputStream(file));
+			try {
+				dis.readFully(data);
+			} finally {
+				dis.close();
+			}
+			return data;
 		}
 	}
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reader for the legacy JSON representation of a map, which had one
+ * "paths_R_C" and one "angles_R_C" key per filled cell. Only used to convert
+ * maps saved by older versions to the binary format.
+ * <p>
+ * The document is streamed: each cell goes straight into the map grid,
+ * without building the whole JSON object in memory.
+ */
+class TileMapJsonReader {
+
+	/**
+	 * @throws IOException
+	 *           if the document is malformed, including values of the wrong
+	 *           type or size.
+	 */
+	public static TileMap read(Reader in) throws IOException {
+		return new StreamingReader().parse(new JsonPullReader(in));
+	}
+
+	private static class StreamingReader {
+		/*
+		 * Keys are not sorted in the documents written by JSONObject, hence cells
+		 * may come before the size of the map is known: in that case they are
+		 * kept aside until the grid can be built.
+		 */
+		private TileMap map;
+		/* Angles are applied at the end, as they may be read before the paths */
+		private byte[] angles;
+		private String name;
+		private int rows = -1, columns = -1;
+		private float scale = 1f, xOff, yOff;
+		private final ArrayList<String> pendingPaths = new ArrayList<String>();
+		private final ArrayList<int[]> pendingPathCells = new ArrayList<int[]>();
+		private final ArrayList<int[]> pendingAngles = new ArrayList<int[]>();
+
+		TileMap parse(JsonPullReader reader) throws IOException {
+			try {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String key = reader.nextName();
+					if (key.startsWith("paths_")) {
+						int[] rc = parseCell(key, 6);
+						onPath(rc[0], rc[1], reader.nextString());
+					} else if (key.startsWith("angles_")) {
+						int[] rc = parseCell(key, 7);
+						onAngle(rc[0], rc[1], (byte) reader.nextInt());
+					} else if ("name".equals(key)) {
+						name = reader.nextString();
+					} else if ("rows".equals(key)) {
+						rows = reader.nextInt();
+						buildGrid();
+					} else if ("columns".equals(key)) {
+						columns = reader.nextInt();
+						buildGrid();
+					} else if ("scale".equals(key)) {
+						scale = (float) reader.nextDouble();
+					} else if ("xOff".equals(key)) {
+						xOff = (float) reader.nextDouble();
+					} else if ("yOff".equals(key)) {
+						yOff = (float) reader.nextDouble();
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			} finally {
+				reader.close();
+			}
+			if (map == null) {
+				throw new IOException("malformed map: missing size");
+			}
+			for (int i = 0; i < angles.length; i++) {
+				if (map.cells[i] != TileMap.EMPTY) {
+					map.setTile(i / columns, i % columns, TileMap.paletteIndexOf(map.cells[i]), angles[i]);
+				}
+			}
+			map.name = name;
+			map.scale = scale;
+			map.xOff = xOff;
+			map.yOff = yOff;
+			return map;
+		}
+
+		/* "paths_R_C" / "angles_R_C" => {R, C} */
+		private static int[] parseCell(String key, int offset) throws IOException {
+			int sep = key.indexOf('_', offset);
+			if (sep == -1) {
+				throw new IOException("malformed key: " + key);
+			}
+			try {
+				return new int[] {
+						Integer.parseInt(key.substring(offset, sep)), Integer.parseInt(key.substring(sep + 1))
+				};
+			} catch (NumberFormatException nfex) {
+				throw new IOException("malformed key: " + key);
+			}
+		}
+
+		private void buildGrid() throws IOException {
+			if (map != null || rows == -1 || columns == -1) {
+				return;
+			}
+			if (rows <= 0 || columns <= 0 || (long) rows * columns > Integer.MAX_VALUE) {
+				throw new IOException("malformed size " + rows + "x" + columns);
+			}
+			map = new TileMap(rows, columns);
+			angles = new byte[rows * columns];
+			for (int i = 0; i < pendingPaths.size(); i++) {
+				int[] rc = pendingPathCells.get(i);
+				onPath(rc[0], rc[1], pendingPaths.get(i));
+			}
+			for (int[] rca : pendingAngles) {
+				onAngle(rca[0], rca[1], (byte) rca[2]);
+			}
+			pendingPaths.clear();
+			pendingPathCells.clear();
+			pendingAngles.clear();
+		}
+
+		private void onPath(int row, int column, String path) {
+			if (map == null) {
+				pendingPaths.add(path);
+				pendingPathCells.add(new int[] {
+						row, column
+				});
+			} else if (row >= 0 && row < rows && column >= 0 && column < columns) {
+				map.setTile(row, column, map.intern(path), (byte) 0);
+			}
+		}
+
+		private void onAngle(int row, int column, byte angle) {
+			if (map == null) {
+				pendingAngles.add(new int[] {
+						row, column, angle
+				});
+			} else if (row >= 0 && row < rows && column >= 0 && column < columns) {
+				angles[row * columns + column] = angle;
+			}
+		}
+	}
+}
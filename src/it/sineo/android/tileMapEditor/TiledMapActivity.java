@@ -16,9 +16,11 @@
 
 package it.sineo.android.tileMapEditor;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 
@@ -28,13 +30,15 @@ import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.database.Cursor;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.support.v4.content.FileProvider;
 import android.util.Log;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.KeyEvent;
@@ -52,6 +56,7 @@ import com.actionbarsherlock.view.Menu;
 
 public class TiledMapActivity extends SherlockFragmentActivity implements DialogInterface.OnClickListener {
 	private static final String TAG = "TiledMapActivity";
+	private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
 
 	TiledMapView view = null;
 	ImageAdapter adapter = null;
@@ -83,7 +88,11 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 		Intent i = getIntent();
 		if (i.hasExtra(C.EXTRA_MAP_ID)) {
 			mapId = i.getLongExtra(C.EXTRA_MAP_ID, -1);
-			view.restoreFromJSON(i.getStringExtra(C.EXTRA_MAP_JSON));
+			if (!loadMap()) {
+				Toast.makeText(this, R.string.tiledMap_error_load, Toast.LENGTH_LONG).show();
+				finish();
+				return;
+			}
 			getSupportActionBar().setTitle(view.getMapName());
 		} else {
 			int rows = i.getIntExtra(C.EXTRA_MAP_ROWS, -1);
@@ -112,6 +121,44 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 		registerForContextMenu(view);
 	}
 
+	/**
+	 * Reads the map data straight from the content provider, rather than having
+	 * it marshalled through the launching Intent. Saves of the same map still
+	 * in progress are waited for first.
+	 * 
+	 * @return false if the map does not exist or its data cannot be decoded.
+	 */
+	private boolean loadMap() {
+		MapSaver.awaitSaves(mapId);
+		Uri mapUri = Uri.withAppendedPath(C.CONTENT_URI, Long.toString(mapId));
+		Cursor c = getContentResolver().query(mapUri, new String[] {
+			TileMap.Columns.KEY_DATA
+		}, null, null, null);
+		if (c != null) {
+			try {
+				if (c.moveToFirst()) {
+					view.restoreFromBinary(c.getBlob(0));
+					return true;
+				} else {
+					Log.e(TAG, "map not found: " + mapId);
+				}
+			} catch (IOException ioex) {
+				Log.e(TAG, "unable to decode map " + mapId, ioex);
+			} finally {
+				c.close();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a snapshot of the map over to the background save: the map is
+	 * inserted if new, updated otherwise.
+	 */
+	private void saveMap() {
+		MapSaver.save(this, mapId, view.getMapName(), view.toBinary(), view.copyThumb());
+	}
+
 	@Override
 	protected void onDestroy() {
 		if (adapter != null && adapter.htImages != null) {
@@ -130,6 +177,7 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 		Bundle tileMapBundle = savedInstanceState.getBundle("tileMap");
 		Log.d(TAG, "savedInstanceState contains: " + tileMapBundle);
 		view.restoreFromBundle(tileMapBundle);
+		mapId = savedInstanceState.getLong("mapId", mapId);
 	}
 
 	@Override
@@ -137,6 +185,7 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 		Bundle tileMapBundle = view.toBundle();
 		Log.d(TAG, "view returned: " + tileMapBundle);
 		outState.putBundle("tileMap", tileMapBundle);
+		outState.putLong("mapId", mapId);
 		super.onSaveInstanceState(outState);
 	}
 
@@ -190,10 +239,10 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 			switch (which) {
 				case DialogInterface.BUTTON_POSITIVE: {
 					/* Save changes */
+					/* Finish right away, the map is written in the background */
+					saveMap();
 					Intent data = new Intent();
 					data.putExtra(C.EXTRA_MAP_ID, mapId);
-					data.putExtra(C.EXTRA_MAP_JSON, view.toJSON());
-					data.putExtra(C.EXTRA_MAP_THUMB, view.exportThumb(CompressFormat.PNG, 9));
 					TiledMapActivity.this.setResult(RESULT_OK, data);
 					TiledMapActivity.this.finish();
 					//
@@ -328,6 +377,10 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 		private String filename;
 
 		private ProgressDialog dlg;
+		/* Taken on the UI thread, exported in the background */
+		private TiledMapView.ExportSnapshot snapshot;
+		/* Error to be shown on the UI thread, if any */
+		private String error;
 
 		public ExportMapAsyncTask(String filename, int mode) {
 			this.mode = mode;
@@ -338,50 +391,75 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 		protected void onPreExecute() {
 			dlg = ProgressDialog.show(TiledMapActivity.this, "", getText(R.string.tiledMap_export_dlg_message), true);
 			dlg.show();
+			snapshot = view.snapshotForExport();
 			super.onPreExecute();
 		}
 
 		@Override
 		protected File doInBackground(String... params) {
+			File destDirectory = Util.getExternalStorageDirectory();
+			File destFile = new File(destDirectory, filename);
+			/*
+			 * Write to a temporary file and only rename it when complete, so that a
+			 * failed export never leaves a truncated image behind.
+			 */
+			File tempFile = new File(destDirectory, filename + ".tmp");
 			try {
-				File destDirectory = Util.getExternalStorageDirectory();
-				File destFile = new File(destDirectory, filename);
-
-				byte[] pngData = view.export(Bitmap.CompressFormat.PNG, 90);
-				FileOutputStream fos = new FileOutputStream(destFile);
-				fos.write(pngData);
-				fos.flush();
-				fos.close();
-				Log.d(TAG, "image size in bytes: " + destFile.length());
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile), EXPORT_BUFFER_SIZE);
+				try {
+					snapshot.export(os);
+				} finally {
+					os.close();
+				}
+				/*
+				 * The rename replaces a previous export atomically; only if it fails
+				 * (i.e. the filesystem does not replace existing files) the old one is
+				 * deleted first.
+				 */
+				if (!tempFile.renameTo(destFile) && (!destFile.delete() || !tempFile.renameTo(destFile))) {
+					throw new IOException("unable to rename " + tempFile + " to " + destFile);
+				}
+				if (C.DEVELOPER_MODE) {
+					Log.d(TAG, "image size in bytes: " + destFile.length());
+				}
 				return destFile;
 			} catch (IOException ioex) {
 				ioex.printStackTrace();
-				Toast.makeText(TiledMapActivity.this,
-						String.format(getString(R.string.tiledMap_export_ioerror), ioex.getMessage()), Toast.LENGTH_LONG).show();
-				return null;
+				error = String.format(getString(R.string.tiledMap_export_ioerror), ioex.getMessage());
 			} catch (OutOfMemoryError oome) {
 				oome.printStackTrace();
-				Toast.makeText(TiledMapActivity.this, R.string.tiledMap_export_oom, Toast.LENGTH_LONG).show();
-				return null;
+				error = getString(R.string.tiledMap_export_oom);
 			}
+			tempFile.delete();
+			return null;
 		}
 
 		@Override
 		protected void onPostExecute(File result) {
 			super.onPostExecute(result);
+			snapshot.release();
 			if (dlg != null) {
 				dlg.dismiss();
 				dlg = null;
 			}
 			if (result != null) {
 				if (mode == MODE_SHARE) {
-					Uri uri = Uri.fromFile(result);
+					/* Readable by the receiving app without any storage permission */
+					Uri uri = FileProvider.getUriForFile(TiledMapActivity.this, C.AUTHORITY_FILES, result);
 					Log.d(TAG, "using uRI: " + uri.toString());
 
 					Intent shareIntent = new Intent(Intent.ACTION_SEND);
 					shareIntent.setType("image/png");
 					shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
 					shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+					/*
+					 * Before Jelly Bean the flag is not carried over by the chooser: grant
+					 * the permission to every possible receiver.
+					 */
+					for (ResolveInfo ri : getPackageManager().queryIntentActivities(shareIntent,
+							PackageManager.MATCH_DEFAULT_ONLY)) {
+						grantUriPermission(ri.activityInfo.packageName, uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+					}
 					startActivityForResult(Intent.createChooser(shareIntent, getString(R.string.tiledMap_chooser_share)),
 							C.REQ_CODE_SHARE);
 				} else {
@@ -392,7 +470,9 @@ public class TiledMapActivity extends SherlockFragmentActivity implements Dialog
 							String.format(getString(R.string.tiledMap_export_save_success), result.getAbsolutePath()),
 							Toast.LENGTH_SHORT).show();
 				}
-			} // end-if: result is null, error has already been shown.
+			} else if (error != null) {
+				Toast.makeText(TiledMapActivity.this, error, Toast.LENGTH_LONG).show();
+			}
 		}
 
 	}
@@ -16,10 +16,13 @@
 
 package it.sineo.android.tileMapEditor;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.text.MessageFormat;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.Deflater;
 
 import org.metalev.multitouch.controller.MultiTouchController;
 import org.metalev.multitouch.controller.MultiTouchController.MultiTouchObjectCanvas;
@@ -30,13 +33,13 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.AttributeSet;
@@ -47,26 +50,39 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.widget.Toast;
 
-public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap>, OnSharedPreferenceChangeListener {
+public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap>, OnSharedPreferenceChangeListener,
+		TileLoader.Callback, TileBitmapStore.OnReleaseListener {
 
 	private final static String TAG = TiledMapView.class.getSimpleName();
 
-	private final static float MIN_DISTANCE = 8f;
+	/** Farthest a finger can move between down and up for a tap, squared. */
+	private final static float MIN_DISTANCE_SQ = 8f * 8f;
 	/**
 	 * Used during panning to determine if we need to repaint the map. A literal 0
 	 * will cause lots of extra redraws due to "trembling fingers" and sensor
-	 * precision.
+	 * precision. Squared, as it is compared with squared distances.
 	 */
-	private final static float MIN_DISTANCE_TO_INVALIDATE = 1.2f;
+	private final static float MIN_DISTANCE_TO_INVALIDATE_SQ = 1.2f * 1.2f;
+	/**
+	 * Side of the chunks of the back-buffer: small enough that rendering the
+	 * chunks uncovered while panning is cheap, large enough that a frame only
+	 * takes a few dozen blits.
+	 */
+	private final static int LAYER_CHUNK_SIZE = 256;
+	/** Side of the regions recorded into a Picture each, in cells. */
+	private final static int PICTURE_REGION_CELLS = 8;
+	/** Upper bound of the memory used by the strip rendered for exports. */
+	private final static int EXPORT_BUFFER_BYTES = 8 * 1024 * 1024;
 
 	private Context context;
 
 	private int tileSize;
 
 	private TileMap tileMap;
-	private PointInfo currentTouchPoint = null;
+	/* Where the first finger went down: only the coordinates are needed */
 	private long fingerDownTime = 0;
-	private PointInfo fingerDownPoint = null;
+	private float fingerDownX;
+	private float fingerDownY;
 
 	/*
 	 * Listeners ========================================
@@ -79,12 +95,62 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 	 */
 	private Paint gridPaint;
 	private Paint debugPaint;
+	private Paint tilePaint;
 	private Paint emptyTilePaint;
+	/* Drawn in place of the tiles which are still being decoded */
+	private Paint loadingTilePaint;
 	private RectF viewRect;
 	private RectF mapRect;
+	/*
+	 * Back-buffer holding the composed map at the scale it was rendered, as a
+	 * ring of square chunks. Chunk (cx, cy) covers the map from (cx, cy) *
+	 * LAYER_CHUNK_SIZE, relative to the map origin, and is kept in slot
+	 * (cy % layerRows) * layerColumns + (cx % layerColumns): the ring is one
+	 * chunk larger than the view on each axis, so the chunks visible at once
+	 * never share a slot.
+	 */
+	private Bitmap[] layerChunks;
+	private Canvas[] layerCanvases;
+	/* Chunk held by each slot, and whether its content is up to date */
+	private int[] layerChunkX, layerChunkY;
+	private boolean[] layerChunkValid;
+	private int layerColumns, layerRows;
+	private boolean layerValid;
+	private final RectF layerRect = new RectF();
+	private float lastFrameScale;
+	/*
+	 * Only used in display list mode, see drawRecorded(): one Picture per region
+	 * of PICTURE_REGION_CELLS cells per side, by row, or null if not recorded
+	 */
+	private Picture[] regionPictures;
+	private int regionColumns;
+	private final RectF regionRect = new RectF();
+	/* Clip of the frame being drawn, reused across frames */
+	private Rect clipBounds;
+	private RectF clipRect;
+	/* Destination of each tile, reused across frames */
+	private RectF tileRect;
+	private TileBitmapCache tileCache;
+	private TileLoader tileLoader;
+	private ViewportConstraint viewport;
+	private TileBitmapStore tileStore;
+	/* Only used in developer mode */
+	private RenderStats renderStats;
+
+	/*
+	 * Thumbnail, updated incrementally ========================================
+	 */
+	private Bitmap thumb;
+	private Canvas thumbCanvas;
+	private int thumbCellSize;
+	/* Cells to be redrawn in the thumbnail, as row * columns + column */
+	private final BitSet thumbDirtyCells = new BitSet();
+	/* Tiles scaled down to thumbCellSize, by path */
+	private final HashMap<String, Bitmap> thumbMiniTiles = new HashMap<String, Bitmap>();
 
 	private boolean mustDrawGrid = C.DEFAULT_MAP_SHOW_GRID;
 	private boolean mustExportGrid = C.DEFAULT_EXPORT_SHOW_GRID;
+	private boolean mustUseDisplayList = C.DEFAULT_MAP_DISPLAY_LIST;
 	private int emptyTileColor = C.DEFAULT_MAP_COLOR_EMPTY_TILE;
 
 	public void init(Context context) {
@@ -98,23 +164,45 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 		debugPaint.setColor(Color.CYAN);
 		debugPaint.setAlpha(255);
 
+		tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+		if (C.DEVELOPER_MODE) {
+			renderStats = new RenderStats();
+			debugPaint.setTextSize(12 * context.getResources().getDisplayMetrics().density);
+		}
+
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
 		mustDrawGrid = prefs.getBoolean(C.PREFS_MAP_SHOW_GRID, C.DEFAULT_MAP_SHOW_GRID);
 		mustExportGrid = prefs.getBoolean(C.PREFS_EXPORT_SHOW_GRID, C.DEFAULT_EXPORT_SHOW_GRID);
+		mustUseDisplayList = prefs.getBoolean(C.PREFS_MAP_DISPLAY_LIST, C.DEFAULT_MAP_DISPLAY_LIST);
 		emptyTileColor = prefs.getInt(C.PREFS_MAP_COLOR_EMPTY_TILE, C.DEFAULT_MAP_COLOR_EMPTY_TILE);
 		prefs.registerOnSharedPreferenceChangeListener(this);
 
 		emptyTilePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 		emptyTilePaint.setColor(emptyTileColor);
 		emptyTilePaint.setStyle(Paint.Style.FILL_AND_STROKE);
+		loadingTilePaint = new Paint(gridPaint);
+		loadingTilePaint.setStyle(Paint.Style.FILL);
+		loadingTilePaint.setAlpha(64);
 
 		mapRect = new RectF(0, 0, 0, 0);
+		tileRect = new RectF(0, 0, 0, 0);
+		clipBounds = new Rect();
+		clipRect = new RectF();
+		tileCache = new TileBitmapCache(TileBitmapCache.defaultBudget());
+		tileLoader = new TileLoader(context, tileSize, this);
+		viewport = new ViewportConstraint(tileSize);
+		/* One pan/zoom update per move event, i.e. per frame on Jelly Bean and later */
+		multiTouchController.setCoalesceMoves(true);
+		tileStore = new TileBitmapStore(this);
 
-		currentTouchPoint = new PointInfo();
-		fingerDownPoint = new PointInfo();
 	}
 
 	public void initMap(int rows, int columns) {
+		layerValid = false;
+		regionPictures = null;
+		resetThumb();
+		tileStore.clear();
 		tileMap = new TileMap(rows, columns);
 	}
 
@@ -128,158 +216,320 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 
 	public Bundle toBundle() {
 		Bundle b = tileMap.toBundle();
-		Log.d(TAG, "built bundle: " + b.toString());
+		if (C.DEVELOPER_MODE) {
+			Log.d(TAG, "built bundle: " + b.toString());
+		}
 		return b;
 	}
 
-	public String toJSON() {
-		String json = tileMap.toJSON();
-		Log.d(TAG, "built json: " + json);
-		return json;
+	public byte[] toBinary() {
+		byte[] data = tileMap.toBinary();
+		if (C.DEVELOPER_MODE) {
+			Log.d(TAG, "built binary map: " + data.length + " bytes");
+		}
+		return data;
 	}
 
 	public void restoreFromBundle(Bundle b) {
 		if (b != null) {
-			Log.d(TAG, "received bundle: " + b.toString());
+			if (C.DEVELOPER_MODE) {
+				Log.d(TAG, "received bundle: " + b.toString());
+			}
+			layerValid = false;
+			regionPictures = null;
+			resetThumb();
+			tileStore.clear();
 			tileMap = new TileMap(b);
 
-			for (int idxRow = 0; idxRow < tileMap.rows; idxRow++) {
-				for (int idxCol = 0; idxCol < tileMap.columns; idxCol++) {
-					if (tileMap.tilePaths[idxRow][idxCol] != null) {
-						setTile(idxRow, idxCol, tileMap.tilePaths[idxRow][idxCol], tileMap.tileAngles[idxRow][idxCol]);
-					}
-				}
-			}
+			loadTileBitmaps();
 		} else {
-			Log.d(TAG, "received null bundle");
+			if (C.DEVELOPER_MODE) {
+				Log.d(TAG, "received null bundle");
+			}
 		}
 	}
 
-	public void restoreFromJSON(String s) {
-		if (s != null) {
-			Log.d(TAG, "received JSON: " + s);
-			tileMap = new TileMap(s);
+	/**
+	 * Replaces the map with the one decoded from data.
+	 * 
+	 * @throws IOException
+	 *           if data is not a valid map, in which case the current map is
+	 *           left untouched.
+	 */
+	public void restoreFromBinary(byte[] data) throws IOException {
+		TileMap decoded = new TileMap(data);
+		if (C.DEVELOPER_MODE) {
+			Log.d(TAG, "received binary map: " + data.length + " bytes");
+		}
+		layerValid = false;
+		regionPictures = null;
+		resetThumb();
+		tileStore.clear();
+		tileMap = decoded;
 
-			for (int idxRow = 0; idxRow < tileMap.rows; idxRow++) {
-				for (int idxCol = 0; idxCol < tileMap.columns; idxCol++) {
-					if (tileMap.tilePaths[idxRow][idxCol] != null) {
-						setTile(idxRow, idxCol, tileMap.tilePaths[idxRow][idxCol], tileMap.tileAngles[idxRow][idxCol]);
-					}
-				}
+		loadTileBitmaps();
+	}
+
+	/**
+	 * Takes a copy of the map to be exported, see {@link ExportSnapshot}. Must be
+	 * called on the UI thread.
+	 */
+	public ExportSnapshot snapshotForExport() {
+		return new ExportSnapshot();
+	}
+
+	/**
+	 * @return an up to date copy of the thumbnail. The cells whose tile is still
+	 *         being decoded are completed by {@link ThumbSnapshot#render()}.
+	 */
+	public ThumbSnapshot copyThumb() {
+		long t0 = System.currentTimeMillis();
+		updateThumb();
+		if (C.DEVELOPER_MODE) {
+			Log.d(TAG, "time to update thumbnail: " + (System.currentTimeMillis() - t0) + " ms");
+		}
+		ThumbSnapshot snapshot = new ThumbSnapshot(thumb.copy(Bitmap.Config.ARGB_8888, true), thumbCellSize,
+				tileMap.columns, tileLoader);
+		/* Cells left dirty by updateThumb() are the ones still being decoded */
+		for (int i = thumbDirtyCells.nextSetBit(0); i >= 0; i = thumbDirtyCells.nextSetBit(i + 1)) {
+			int cell = tileMap.cells[i];
+			snapshot.addMissingCell(i, TileMap.angleOf(cell), tileMap.palette.get(TileMap.paletteIndexOf(cell)));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Brings the thumbnail up to date, re-rendering only the cells changed
+	 * since the last update.
+	 * <p>
+	 * The thumbnail is drawn directly at its final size, at most one tile per
+	 * side: each cell is an integer number of pixels, drawn from a mini version
+	 * of its tile which is only created once per palette entry. Cells whose tile
+	 * is not decoded yet are left dirty.
+	 */
+	private void updateThumb() {
+		if (thumb == null) {
+			thumbCellSize = Math.max(1, tileSize / Math.max(tileMap.rows, tileMap.columns));
+			thumb = Bitmap.createBitmap(thumbCellSize * tileMap.columns, thumbCellSize * tileMap.rows,
+					Bitmap.Config.ARGB_8888);
+			thumbCanvas = new Canvas(thumb);
+			thumbMiniTiles.clear();
+			thumbDirtyCells.set(0, tileMap.rows * tileMap.columns);
+			if (C.DEVELOPER_MODE) {
+				Log.d(TAG, "rows=" + tileMap.rows + ", columns=" + tileMap.columns + ", width=" + thumb.getWidth()
+						+ ", height=" + thumb.getHeight());
+			}
+		}
+		float half = thumbCellSize / 2f;
+		for (int i = thumbDirtyCells.nextSetBit(0); i >= 0; i = thumbDirtyCells.nextSetBit(i + 1)) {
+			int left = (i % tileMap.columns) * thumbCellSize;
+			int top = (i / tileMap.columns) * thumbCellSize;
+			thumbCanvas.drawRect(left, top, left + thumbCellSize, top + thumbCellSize, emptyTilePaint);
+			int cell = tileMap.cells[i];
+			Bitmap mini = cell == TileMap.EMPTY ? null : getMiniTile(TileMap.paletteIndexOf(cell));
+			if (mini != null) {
+				thumbCanvas.save();
+				thumbCanvas.rotate(90 * TileMap.angleOf(cell), left + half, top + half);
+				thumbCanvas.drawBitmap(mini, left, top, null);
+				thumbCanvas.restore();
+			}
+			if (mini != null || cell == TileMap.EMPTY) {
+				thumbDirtyCells.clear(i);
 			}
-		} else {
-			Log.d(TAG, "received null json");
 		}
 	}
 
-	public byte[] export(Bitmap.CompressFormat format, int quality) {
-		Bitmap fullMap = Bitmap.createBitmap(tileSize * tileMap.columns, tileSize * tileMap.rows, Bitmap.Config.ARGB_8888);
-		Canvas canvas = new Canvas(fullMap);
-		canvas.drawPaint(emptyTilePaint);
-		long t0 = System.currentTimeMillis();
-		for (int rowIdx = 0; rowIdx < tileMap.rows; rowIdx++) {
-			for (int colIdx = 0; colIdx < tileMap.columns; colIdx++) {
-				if (tileMap.tilePaths[rowIdx][colIdx] != null) {
-					float left = tileSize * colIdx;
-					float top = tileSize * rowIdx;
-					Matrix m = tileMap.tileMatrices[rowIdx][colIdx];
-					Log.d(TAG, "angle: " + tileMap.tileAngles[rowIdx][colIdx] + " => "
-							+ (90 * tileMap.tileAngles[rowIdx][colIdx]));
-					/*
-					 * The following order and call to scale+rotate is the only one which
-					 * works...
-					 */
-					m.reset();
-					m.postRotate(90 * tileMap.tileAngles[rowIdx][colIdx]);
-					Bitmap scaled = Bitmap.createBitmap(tileMap.tileBitmaps[rowIdx][colIdx], 0, 0, tileSize, tileSize, m, true);
-					canvas.drawBitmap(scaled, left, top, debugPaint);
-					scaled.recycle();
-				}
+	/**
+	 * @return the tile of the given palette entry scaled to the size of a
+	 *         thumbnail cell, or null if the tile is not loaded (yet).
+	 */
+	private Bitmap getMiniTile(int paletteIndex) {
+		String path = tileMap.palette.get(paletteIndex);
+		Bitmap mini = thumbMiniTiles.get(path);
+		if (mini == null) {
+			Bitmap source = tileStore.get(path);
+			if (source != null) {
+				mini = Bitmap.createScaledBitmap(source, thumbCellSize, thumbCellSize, true);
+				thumbMiniTiles.put(path, mini);
 			}
 		}
-		long t1 = System.currentTimeMillis();
-		Log.d(TAG, "time to draw tiles: " + (t1 - t0) + " ms");
-		if (mustExportGrid) {
-			t0 = System.currentTimeMillis();
-			/* Grid */
-			for (int rowIdx = 0; rowIdx <= tileMap.rows; rowIdx++) {
-				float x0 = 0;
-				float y0 = (rowIdx * tileSize);
-				float x1 = ((tileMap.columns * tileSize) - 1);
-				float y1 = (rowIdx * tileSize);
-				canvas.drawLine(x0, y0, x1, y1, gridPaint);
-			}
-			for (int colIdx = 0; colIdx <= tileMap.columns; colIdx++) {
-				float x0 = colIdx * tileSize;
-				float y0 = 0;
-				float x1 = colIdx * tileSize;
-				float y1 = ((tileMap.rows * tileSize) - 1);
-				canvas.drawLine(x0, y0, x1, y1, gridPaint);
-			}
-			t1 = System.currentTimeMillis();
-			Log.d(TAG, "time to draw grid: " + (t1 - t0) + " ms");
-		} else {
-			Log.d(TAG, "not drawing grid as per settings");
+		return mini;
+	}
+
+	/**
+	 * Marks a cell as changed, so that it is redrawn in the thumbnail.
+	 */
+	private void invalidateThumb(int row, int column) {
+		thumbDirtyCells.set(row * tileMap.columns + column);
+	}
+
+	/**
+	 * Throws away the thumbnail: it is rebuilt from scratch by the next update.
+	 */
+	private void resetThumb() {
+		if (thumb != null) {
+			thumb.recycle();
+			thumb = null;
+			thumbCanvas = null;
+		}
+		for (Bitmap mini : thumbMiniTiles.values()) {
+			mini.recycle();
 		}
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		t0 = System.currentTimeMillis();
-		fullMap.compress(format, quality, baos);
-		t1 = System.currentTimeMillis();
-		Log.d(TAG, "time to convert format: " + (t1 - t0) + " ms");
-		return baos.toByteArray();
+		thumbMiniTiles.clear();
+		thumbDirtyCells.clear();
 	}
 
-	public byte[] exportThumb(Bitmap.CompressFormat format, int quality) {
-		Bitmap fullMap = Bitmap.createBitmap(tileSize * tileMap.columns, tileSize * tileMap.rows, Bitmap.Config.ARGB_8888);
-		Canvas canvas = new Canvas(fullMap);
-		canvas.drawPaint(emptyTilePaint);
-		long t0 = System.currentTimeMillis();
-		for (int rowIdx = 0; rowIdx < tileMap.rows; rowIdx++) {
-			for (int colIdx = 0; colIdx < tileMap.columns; colIdx++) {
-				if (tileMap.tilePaths[rowIdx][colIdx] != null) {
-					float left = tileSize * colIdx;
-					float top = tileSize * rowIdx;
-					Matrix m = tileMap.tileMatrices[rowIdx][colIdx];
-					Log.d(TAG, "angle: " + tileMap.tileAngles[rowIdx][colIdx] + " => "
-							+ (90 * tileMap.tileAngles[rowIdx][colIdx]));
-					/*
-					 * The following order and call to scale+rotate is the only one which
-					 * works...
-					 */
-					m.reset();
-					m.postRotate(90 * tileMap.tileAngles[rowIdx][colIdx]);
-					Bitmap scaled = Bitmap.createBitmap(tileMap.tileBitmaps[rowIdx][colIdx], 0, 0, tileSize, tileSize, m, true);
-					canvas.drawBitmap(scaled, left, top, debugPaint);
-					scaled.recycle();
+	/**
+	 * Copy of the map taken on the UI thread, so that it can be exported on a
+	 * background thread while the map is edited. The tile bitmaps are pinned in
+	 * the store until {@link #release()}, so that they are not recycled
+	 * meanwhile.
+	 */
+	public class ExportSnapshot {
+		private final int rows;
+		private final int columns;
+		private final int[] cells;
+		private final String[] paths;
+		/* The bitmap of each palette entry, or null if not loaded */
+		private final Bitmap[] sources;
+		private final Bitmap[] pinned;
+		private final boolean grid;
+
+		private ExportSnapshot() {
+			rows = tileMap.rows;
+			columns = tileMap.columns;
+			cells = tileMap.cells.clone();
+			paths = tileMap.palette.toArray(new String[tileMap.palette.size()]);
+			sources = new Bitmap[paths.length];
+			for (int idx = 0; idx < paths.length; idx++) {
+				sources[idx] = tileStore.pin(paths[idx]);
+			}
+			pinned = sources.clone();
+			grid = mustExportGrid;
+		}
+
+		/**
+		 * Renders the whole map at full size and writes it as a PNG to the given
+		 * stream, which is not closed. Can be called on any thread.
+		 * <p>
+		 * The map is rendered in horizontal strips, each one encoded as soon as it
+		 * is drawn, so that the memory needed does not depend on the size of the
+		 * map. The strips are rendered on the calling thread: encoding takes most
+		 * of the time, so rendering them on other threads gains very little.
+		 */
+		public void export(OutputStream out) throws IOException {
+			final int width = tileSize * columns;
+			final int height = tileSize * rows;
+			final int stripHeight = Math.max(1, Math.min(height, EXPORT_BUFFER_BYTES / (width * 4)));
+			long t0 = System.currentTimeMillis();
+			long renderMillis = 0;
+
+			/* Tiles still being decoded are decoded here instead, and dropped afterwards */
+			boolean[] used = new boolean[sources.length];
+			for (int cell : cells) {
+				if (cell != TileMap.EMPTY) {
+					used[TileMap.paletteIndexOf(cell)] = true;
 				}
 			}
+			ArrayList<Bitmap> decoded = new ArrayList<Bitmap>();
+			Bitmap strip = null;
+			PngStreamEncoder encoder = new PngStreamEncoder(out, width, height, Deflater.DEFAULT_COMPRESSION);
+			try {
+				for (int idx = 0; idx < sources.length; idx++) {
+					if (used[idx] && sources[idx] == null) {
+						sources[idx] = tileLoader.loadNow(paths[idx]);
+						if (sources[idx] != null) {
+							decoded.add(sources[idx]);
+						}
+					}
+				}
+				strip = Bitmap.createBitmap(width, stripHeight, Bitmap.Config.ARGB_8888);
+				Canvas canvas = new Canvas(strip);
+				int[] pixels = new int[width];
+				for (int top = 0; top < height; top += stripHeight) {
+					int bottom = Math.min(height, top + stripHeight);
+					long t1 = System.currentTimeMillis();
+					canvas.save();
+					canvas.translate(0, -top);
+					drawStrip(canvas, top, bottom);
+					canvas.restore();
+					renderMillis += System.currentTimeMillis() - t1;
+					for (int y = 0; y < bottom - top; y++) {
+						strip.getPixels(pixels, 0, width, 0, y, width, 1);
+						encoder.writeRow(pixels, 0);
+					}
+				}
+				encoder.finish();
+			} finally {
+				encoder.close();
+				if (strip != null) {
+					strip.recycle();
+				}
+				for (Bitmap bitmap : decoded) {
+					bitmap.recycle();
+				}
+			}
+			if (C.DEVELOPER_MODE) {
+				Log.d(TAG, "time to export " + width + "x" + height + " in strips of " + stripHeight + " px: "
+						+ (System.currentTimeMillis() - t0) + " ms, " + renderMillis + " ms of which rendering");
+			}
 		}
-		long t1 = System.currentTimeMillis();
-		Log.d(TAG, "time to draw tiles: " + (t1 - t0) + " ms");
-		int width, height;
-		if (tileMap.rows > tileMap.columns) {
-			width = (int) ((tileSize * tileMap.columns) / tileMap.rows);
-			height = tileSize;
-		} else if (tileMap.rows < tileMap.columns) {
-			width = tileSize;
-			height = (int) ((tileSize * tileMap.rows) / tileMap.columns);
-		} else {
-			width = height = tileSize;
+
+		/**
+		 * Unpins the tile bitmaps. Must be called on the UI thread, once the
+		 * export is over.
+		 */
+		public void release() {
+			for (Bitmap bitmap : pinned) {
+				if (bitmap != null) {
+					tileStore.unpin(bitmap);
+				}
+			}
+		}
+
+		/**
+		 * Draws the part of the full size map between the given vertical
+		 * coordinates; the canvas is expected to be translated accordingly.
+		 */
+		private void drawStrip(Canvas canvas, int top, int bottom) {
+			canvas.drawPaint(emptyTilePaint);
+			int firstRow = top / tileSize;
+			int lastRow = Math.min(rows - 1, (bottom - 1) / tileSize);
+			for (int rowIdx = firstRow; rowIdx <= lastRow; rowIdx++) {
+				for (int colIdx = 0; colIdx < columns; colIdx++) {
+					int cell = cells[rowIdx * columns + colIdx];
+					/* Only tiles which could not be loaded at all are left empty */
+					Bitmap source = cell == TileMap.EMPTY ? null : sources[TileMap.paletteIndexOf(cell)];
+					if (source != null) {
+						float left = tileSize * colIdx;
+						float tileTop = tileSize * rowIdx;
+						/* Rotate the canvas rather than creating a rotated copy of the tile */
+						canvas.save();
+						canvas.rotate(90 * TileMap.angleOf(cell), left + tileSize / 2f, tileTop + tileSize / 2f);
+						canvas.drawBitmap(source, left, tileTop, debugPaint);
+						canvas.restore();
+					}
+				}
+			}
+			if (grid) {
+				for (int rowIdx = firstRow; rowIdx <= lastRow + 1; rowIdx++) {
+					float y = rowIdx * tileSize;
+					canvas.drawLine(0, y, (columns * tileSize) - 1, y, gridPaint);
+				}
+				for (int colIdx = 0; colIdx <= columns; colIdx++) {
+					float x = colIdx * tileSize;
+					canvas.drawLine(x, top, x, bottom, gridPaint);
+				}
+			}
 		}
-		Log.d(TAG, "rows=" + tileMap.rows + ", columns=" + tileMap.columns + ", width=" + width + ", height=" + height);
-		fullMap = Bitmap.createScaledBitmap(fullMap, width, height, true);
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		t0 = System.currentTimeMillis();
-		fullMap.compress(format, quality, baos);
-		t1 = System.currentTimeMillis();
-		Log.d(TAG, "time to convert format: " + (t1 - t0) + " ms");
-		return baos.toByteArray();
 	}
 
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
 		viewRect = new RectF(0, 0, w, h);
+		viewport.setViewSize(w, h);
+		allocateLayer(w, h);
 	}
 
 	/*
@@ -288,75 +538,372 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 	@Override
 	protected void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
+		if (C.DEVELOPER_MODE) {
+			renderStats.beginFrame(tileCache);
+		}
+		/*
+		 * Only draw what falls inside the clip, which is smaller than the view
+		 * when a single cell has been invalidated (see invalidateTile()).
+		 */
+		if (canvas.getClipBounds(clipBounds)) {
+			clipRect.set(clipBounds);
+			if (clipRect.intersect(viewRect)) {
+				if (mustUseDisplayList) {
+					drawRecorded(canvas);
+				} else if (!drawLayer(canvas)) {
+					canvas.save();
+					drawMap(canvas, tileMap.xOff, tileMap.yOff, clipRect);
+					canvas.restore();
+				}
+			}
+		}
+		if (C.DEVELOPER_MODE) {
+			renderStats.endFrame(tileCache);
+			renderStats.draw(canvas, debugPaint, 10, 10 + debugPaint.getTextSize());
+		}
+	}
+
+	/*
+	 * Display list mode ========================================
+	 */
+
+	/**
+	 * Draws the map in display list mode: tiles are drawn at their full size in
+	 * map coordinates, and pan, zoom and rotation are only canvas transforms.
+	 * The map is split in square regions, each recorded into a Picture which is
+	 * replayed until one of its cells changes; only the regions inside the clip
+	 * are replayed. Regions with tiles still being decoded are drawn directly
+	 * until the decoding is over, so that they are recorded only once.
+	 * <p>
+	 * Hardware canvases cannot replay a Picture before Marshmallow: there the
+	 * commands for the visible cells are issued on every frame instead, which
+	 * is cheap as the transforms are done by the GPU and each tile is uploaded
+	 * as a texture only once.
+	 */
+	private void drawRecorded(Canvas canvas) {
 		canvas.save();
+		canvas.translate(tileMap.xOff, tileMap.yOff);
+		canvas.scale(tileMap.scale, tileMap.scale);
+		float scaledTileSize = tileSize * tileMap.scale;
+		int firstRow = Math.max(0, (int) FloatMath.floor((clipRect.top - tileMap.yOff) / scaledTileSize));
+		int lastRow = Math.min(tileMap.rows - 1, (int) FloatMath.floor((clipRect.bottom - tileMap.yOff) / scaledTileSize));
+		int firstCol = Math.max(0, (int) FloatMath.floor((clipRect.left - tileMap.xOff) / scaledTileSize));
+		int lastCol = Math.min(tileMap.columns - 1,
+				(int) FloatMath.floor((clipRect.right - tileMap.xOff) / scaledTileSize));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && Build.VERSION.SDK_INT < 23 /* M */
+				&& canvas.isHardwareAccelerated()) {
+			drawUnscaled(canvas, firstRow, lastRow, firstCol, lastCol);
+		} else if (firstRow <= lastRow && firstCol <= lastCol) {
+			if (regionPictures == null) {
+				regionColumns = (tileMap.columns + PICTURE_REGION_CELLS - 1) / PICTURE_REGION_CELLS;
+				int regionRows = (tileMap.rows + PICTURE_REGION_CELLS - 1) / PICTURE_REGION_CELLS;
+				regionPictures = new Picture[regionRows * regionColumns];
+			}
+			for (int ry = firstRow / PICTURE_REGION_CELLS; ry <= lastRow / PICTURE_REGION_CELLS; ry++) {
+				for (int rx = firstCol / PICTURE_REGION_CELLS; rx <= lastCol / PICTURE_REGION_CELLS; rx++) {
+					int r0 = ry * PICTURE_REGION_CELLS;
+					int r1 = Math.min(tileMap.rows, r0 + PICTURE_REGION_CELLS) - 1;
+					int c0 = rx * PICTURE_REGION_CELLS;
+					int c1 = Math.min(tileMap.columns, c0 + PICTURE_REGION_CELLS) - 1;
+					int idx = ry * regionColumns + rx;
+					/*
+					 * Clipped to the region, so that the (translucent) grid lines on the
+					 * edges between regions are only drawn once; the edges of the map are
+					 * left open.
+					 */
+					regionRect.set(c0 == 0 ? -tileSize : c0 * tileSize, r0 == 0 ? -tileSize : r0 * tileSize,
+							(c1 == tileMap.columns - 1 ? c1 + 2 : c1 + 1) * tileSize,
+							(r1 == tileMap.rows - 1 ? r1 + 2 : r1 + 1) * tileSize);
+					if (regionPictures[idx] == null && !isLoading(r0, r1, c0, c1)) {
+						Picture picture = new Picture();
+						/* Recorded in map coordinates, hence the size of the whole map */
+						Canvas recorder = picture.beginRecording(tileSize * tileMap.columns, tileSize * tileMap.rows);
+						recorder.clipRect(regionRect);
+						drawUnscaled(recorder, r0, r1, c0, c1);
+						picture.endRecording();
+						regionPictures[idx] = picture;
+					}
+					if (regionPictures[idx] != null) {
+						canvas.drawPicture(regionPictures[idx]);
+					} else {
+						canvas.save();
+						canvas.clipRect(regionRect);
+						drawUnscaled(canvas, r0, r1, c0, c1);
+						canvas.restore();
+					}
+				}
+			}
+		}
+		canvas.restore();
+		if (C.DEVELOPER_MODE) {
+			renderStats.endPhase(RenderStats.PHASE_TILES);
+		}
+	}
 
-		long t0 = System.currentTimeMillis();
+	/**
+	 * @return true if any of the given range of cells uses a tile which is
+	 *         still being decoded.
+	 */
+	private boolean isLoading(int firstRow, int lastRow, int firstCol, int lastCol) {
+		int[] cells = tileMap.cells;
+		for (int rowIdx = firstRow; rowIdx <= lastRow; rowIdx++) {
+			int rowStart = rowIdx * tileMap.columns;
+			for (int colIdx = firstCol; colIdx <= lastCol; colIdx++) {
+				int cell = cells[rowStart + colIdx];
+				if (cell != TileMap.EMPTY && tileStore.isLoading(tileMap.palette.get(TileMap.paletteIndexOf(cell)))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
 
-		mapRect.left = tileMap.xOff;
-		mapRect.top = tileMap.yOff;
-		mapRect.right = tileMap.xOff + tileSize * tileMap.columns * tileMap.scale;
-		mapRect.bottom = tileMap.yOff + tileSize * tileMap.rows * tileMap.scale;
-		if (mapRect.intersect(viewRect)) {
-			canvas.drawRect(mapRect, emptyTilePaint);
-		}
-		long t1 = System.currentTimeMillis();
-		Log.d(TAG, "time to fill map background: " + (t1 - t0) + " ms.");
-		t0 = System.currentTimeMillis();
-		for (int rowIdx = 0; rowIdx < tileMap.rows; rowIdx++) {
-			for (int colIdx = 0; colIdx < tileMap.columns; colIdx++) {
-				if (tileMap.tilePaths[rowIdx][colIdx] != null) {
-					float left = tileMap.xOff + tileSize * colIdx * tileMap.scale;
-					float top = tileMap.yOff + tileSize * rowIdx * tileMap.scale;
-					float width = tileSize * tileMap.scale;
-					float height = width;
-					if (viewRect.intersects(left, top, left + width, top + height)) {
-						Matrix m = tileMap.tileMatrices[rowIdx][colIdx];
-						Log.d(TAG, "angle: " + tileMap.tileAngles[rowIdx][colIdx] + " => "
-								+ (90 * tileMap.tileAngles[rowIdx][colIdx]));
-						/*
-						 * The following order and call to scale+rotate is the only one
-						 * which works...
-						 */
-						m.reset();
-						m.postRotate(90 * tileMap.tileAngles[rowIdx][colIdx]);
-						m.preScale(tileMap.scale, tileMap.scale);
-						Bitmap scaled = Bitmap.createBitmap(tileMap.tileBitmaps[rowIdx][colIdx], 0, 0, tileSize, tileSize, m, true);
-						canvas.drawBitmap(scaled, left, top, debugPaint);
-						/*
-						 * Commenting out recycle() as some devices find it too
-						 * "aggressive". I'll need to learn how to properly display bitmaps.
-						 * :(
-						 */
-						// scaled.recycle();
-					} // end-if: tile does not intersect view area
+	/**
+	 * Draws the given range of cells at full size, in map coordinates.
+	 */
+	private void drawUnscaled(Canvas canvas, int firstRow, int lastRow, int firstCol, int lastCol) {
+		if (firstRow > lastRow || firstCol > lastCol) {
+			return;
+		}
+		tileRect.set(firstCol * tileSize, firstRow * tileSize, (lastCol + 1) * tileSize, (lastRow + 1) * tileSize);
+		canvas.drawRect(tileRect, emptyTilePaint);
+		float half = tileSize / 2f;
+		int[] cells = tileMap.cells;
+		for (int rowIdx = firstRow; rowIdx <= lastRow; rowIdx++) {
+			int rowStart = rowIdx * tileMap.columns;
+			for (int colIdx = firstCol; colIdx <= lastCol; colIdx++) {
+				int cell = cells[rowStart + colIdx];
+				if (cell != TileMap.EMPTY) {
+					float left = colIdx * tileSize;
+					float top = rowIdx * tileSize;
+					Bitmap source = tileStore.get(tileMap.palette.get(TileMap.paletteIndexOf(cell)));
+					if (source != null) {
+						canvas.save();
+						canvas.rotate(90 * TileMap.angleOf(cell), left + half, top + half);
+						canvas.drawBitmap(source, left, top, tilePaint);
+						canvas.restore();
+					} else {
+						tileRect.set(left, top, left + tileSize, top + tileSize);
+						canvas.drawRect(tileRect, loadingTilePaint);
+					}
 				}
 			}
 		}
-		t1 = System.currentTimeMillis();
-		Log.d(TAG, "time to draw tiles: " + (t1 - t0) + " ms");
 		if (mustDrawGrid) {
-			t0 = System.currentTimeMillis();
-			/* Grid */
-			for (int rowIdx = 0; rowIdx <= tileMap.rows; rowIdx++) {
-				float x0 = tileMap.xOff;
-				float y0 = tileMap.yOff + (rowIdx * tileSize * tileMap.scale);
-				float x1 = tileMap.xOff + ((tileMap.columns * tileSize) - 1) * tileMap.scale;
-				float y1 = tileMap.yOff + (rowIdx * tileSize) * tileMap.scale;
-				canvas.drawLine(x0, y0, x1, y1, gridPaint);
-			}
-			for (int colIdx = 0; colIdx <= tileMap.columns; colIdx++) {
-				float x0 = tileMap.xOff + colIdx * tileSize * tileMap.scale;
-				float y0 = tileMap.yOff;
-				float x1 = tileMap.xOff + colIdx * tileSize * tileMap.scale;
-				float y1 = tileMap.yOff + ((tileMap.rows * tileSize) - 1) * tileMap.scale;
-				canvas.drawLine(x0, y0, x1, y1, gridPaint);
-			}
-			t1 = System.currentTimeMillis();
-			Log.d(TAG, "time to draw grid: " + (t1 - t0) + " ms");
+			float x0 = firstCol * tileSize;
+			float x1 = (lastCol + 1) * tileSize;
+			for (int rowIdx = firstRow; rowIdx <= lastRow + 1; rowIdx++) {
+				canvas.drawLine(x0, rowIdx * tileSize, x1, rowIdx * tileSize, gridPaint);
+			}
+			float y0 = firstRow * tileSize;
+			float y1 = (lastRow + 1) * tileSize;
+			for (int colIdx = firstCol; colIdx <= lastCol + 1; colIdx++) {
+				canvas.drawLine(colIdx * tileSize, y0, colIdx * tileSize, y1, gridPaint);
+			}
+		}
+	}
+
+	/*
+	 * Back-buffer ========================================
+	 */
+
+	/**
+	 * Sets up the ring of chunks of the back-buffer for the given view size.
+	 * The chunks themselves are only allocated when first drawn.
+	 */
+	private void allocateLayer(int w, int h) {
+		releaseLayer();
+		layerValid = false;
+		if (w == 0 || h == 0) {
+			return;
+		}
+		layerColumns = (w + LAYER_CHUNK_SIZE - 1) / LAYER_CHUNK_SIZE + 1;
+		layerRows = (h + LAYER_CHUNK_SIZE - 1) / LAYER_CHUNK_SIZE + 1;
+		int slots = layerColumns * layerRows;
+		layerChunks = new Bitmap[slots];
+		layerCanvases = new Canvas[slots];
+		layerChunkX = new int[slots];
+		layerChunkY = new int[slots];
+		layerChunkValid = new boolean[slots];
+	}
+
+	private void releaseLayer() {
+		if (layerChunks != null) {
+			for (Bitmap chunk : layerChunks) {
+				if (chunk != null) {
+					chunk.recycle();
+				}
+			}
+			layerChunks = null;
+			layerCanvases = null;
+		}
+	}
+
+	/**
+	 * Draws the map by blitting the chunks of the back-buffer covering the clip.
+	 * Chunks are only rendered when the scale has changed, when their cells
+	 * have changed, or when they come into view: while panning, a frame is a
+	 * few blits plus, when crossing a chunk boundary, the rendering of a single
+	 * row or column of chunks.
+	 *
+	 * @return false if the back-buffer cannot be used for this frame, i.e. it
+	 *         does not exist or the map is being scaled.
+	 */
+	private boolean drawLayer(Canvas canvas) {
+		if (layerChunks == null) {
+			return false;
+		}
+		float scale = tileMap.scale;
+		boolean scaling = scale != lastFrameScale;
+		lastFrameScale = scale;
+		if (scaling) {
+			/* The buffer is rebuilt once the scale settles */
+			layerValid = false;
+			return false;
+		}
+		if (!layerValid) {
+			Arrays.fill(layerChunkValid, false);
+			layerValid = true;
+		}
+		/* Visible chunks, limited to the ones covering the map */
+		float mapWidth = tileSize * tileMap.columns * scale;
+		float mapHeight = tileSize * tileMap.rows * scale;
+		int firstCx = Math.max(0, (int) FloatMath.floor((clipRect.left - tileMap.xOff) / LAYER_CHUNK_SIZE));
+		int lastCx = Math.min((int) FloatMath.ceil(mapWidth / LAYER_CHUNK_SIZE) - 1,
+				(int) FloatMath.floor((clipRect.right - tileMap.xOff) / LAYER_CHUNK_SIZE));
+		int firstCy = Math.max(0, (int) FloatMath.floor((clipRect.top - tileMap.yOff) / LAYER_CHUNK_SIZE));
+		int lastCy = Math.min((int) FloatMath.ceil(mapHeight / LAYER_CHUNK_SIZE) - 1,
+				(int) FloatMath.floor((clipRect.bottom - tileMap.yOff) / LAYER_CHUNK_SIZE));
+		for (int cy = firstCy; cy <= lastCy; cy++) {
+			for (int cx = firstCx; cx <= lastCx; cx++) {
+				int slot = (cy % layerRows) * layerColumns + (cx % layerColumns);
+				if (!layerChunkValid[slot] || layerChunkX[slot] != cx || layerChunkY[slot] != cy) {
+					if (!renderChunk(slot, cx, cy)) {
+						return false;
+					}
+				}
+				canvas.drawBitmap(layerChunks[slot], tileMap.xOff + cx * LAYER_CHUNK_SIZE, tileMap.yOff + cy
+						* LAYER_CHUNK_SIZE, null);
+			}
+		}
+		if (C.DEVELOPER_MODE) {
+			renderStats.endPhase(RenderStats.PHASE_BLIT);
+		}
+		return true;
+	}
+
+	/**
+	 * Renders the given chunk into the given slot, allocating it if needed.
+	 *
+	 * @return false if there is not enough memory for the chunk, in which case
+	 *         the back-buffer is dropped and the map is always drawn directly.
+	 */
+	private boolean renderChunk(int slot, int cx, int cy) {
+		if (layerChunks[slot] == null) {
+			try {
+				layerChunks[slot] = Bitmap.createBitmap(LAYER_CHUNK_SIZE, LAYER_CHUNK_SIZE, Bitmap.Config.ARGB_8888);
+				layerCanvases[slot] = new Canvas(layerChunks[slot]);
+			} catch (OutOfMemoryError oome) {
+				Log.w(TAG, "not enough memory for the back-buffer, drawing directly");
+				releaseLayer();
+				return false;
+			}
 		} else {
-			Log.d(TAG, "not drawing grid as per settings");
+			layerChunks[slot].eraseColor(Color.TRANSPARENT);
+		}
+		layerRect.set(0, 0, LAYER_CHUNK_SIZE, LAYER_CHUNK_SIZE);
+		drawMap(layerCanvases[slot], -cx * LAYER_CHUNK_SIZE, -cy * LAYER_CHUNK_SIZE, layerRect);
+		layerChunkX[slot] = cx;
+		layerChunkY[slot] = cy;
+		layerChunkValid[slot] = true;
+		return true;
+	}
+
+	/**
+	 * Throws away the content of the back-buffer, e.g. when the settings
+	 * affecting the rendering have changed.
+	 */
+	private void invalidateLayer() {
+		layerValid = false;
+		regionPictures = null;
+		invalidate();
+	}
+
+	/**
+	 * Draws the part of the map which falls inside area, with the map origin at
+	 * (xOff, yOff) in canvas coordinates and at the current scale.
+	 */
+	private void drawMap(Canvas canvas, float xOff, float yOff, RectF area) {
+		mapRect.left = xOff;
+		mapRect.top = yOff;
+		mapRect.right = xOff + tileSize * tileMap.columns * tileMap.scale;
+		mapRect.bottom = yOff + tileSize * tileMap.rows * tileMap.scale;
+		if (!mapRect.intersect(area)) {
+			/* The map is completely out of sight: nothing to draw. */
+			return;
+		}
+		/* From now on mapRect is the part of the map to be drawn. */
+		canvas.drawRect(mapRect, emptyTilePaint);
+		if (C.DEVELOPER_MODE) {
+			renderStats.endPhase(RenderStats.PHASE_BACKGROUND);
+		}
+		/*
+		 * Only iterate on the rows and columns which fall inside the view, so that
+		 * the cost of a frame depends on the size of the screen and not on the size
+		 * of the map.
+		 */
+		float scaledTileSize = tileSize * tileMap.scale;
+		int firstRow = Math.max(0, (int) FloatMath.floor((mapRect.top - yOff) / scaledTileSize));
+		int lastRow = Math.min(tileMap.rows - 1, (int) FloatMath.floor((mapRect.bottom - yOff) / scaledTileSize));
+		int firstCol = Math.max(0, (int) FloatMath.floor((mapRect.left - xOff) / scaledTileSize));
+		int lastCol = Math.min(tileMap.columns - 1,
+				(int) FloatMath.floor((mapRect.right - xOff) / scaledTileSize));
+		int[] cells = tileMap.cells;
+		for (int rowIdx = firstRow; rowIdx <= lastRow; rowIdx++) {
+			int rowStart = rowIdx * tileMap.columns;
+			for (int colIdx = firstCol; colIdx <= lastCol; colIdx++) {
+				int cell = cells[rowStart + colIdx];
+				if (cell != TileMap.EMPTY) {
+					float left = xOff + colIdx * scaledTileSize;
+					float top = yOff + rowIdx * scaledTileSize;
+					int idx = TileMap.paletteIndexOf(cell);
+					String path = tileMap.palette.get(idx);
+					Bitmap source = tileStore.get(path);
+					tileRect.set(left, top, left + scaledTileSize, top + scaledTileSize);
+					if (source != null) {
+						Bitmap scaled = tileCache.get(path, source, TileMap.angleOf(cell), tileMap.scale);
+						canvas.drawBitmap(scaled, null, tileRect, tilePaint);
+					} else {
+						/* Still decoding: the tile is invalidated once it is ready */
+						canvas.drawRect(tileRect, loadingTilePaint);
+					}
+					if (C.DEVELOPER_MODE) {
+						renderStats.tileDrawn();
+					}
+				}
+			}
+		}
+		if (C.DEVELOPER_MODE) {
+			renderStats.endPhase(RenderStats.PHASE_TILES);
+		}
+		if (mustDrawGrid) {
+			/* Grid, clipped to the visible rows/columns and to the visible area */
+			float x0 = mapRect.left;
+			float x1 = Math.min(mapRect.right, xOff + ((tileMap.columns * tileSize) - 1) * tileMap.scale);
+			for (int rowIdx = firstRow; rowIdx <= lastRow + 1; rowIdx++) {
+				float y = yOff + rowIdx * scaledTileSize;
+				canvas.drawLine(x0, y, x1, y, gridPaint);
+			}
+			float y0 = mapRect.top;
+			float y1 = Math.min(mapRect.bottom, yOff + ((tileMap.rows * tileSize) - 1) * tileMap.scale);
+			for (int colIdx = firstCol; colIdx <= lastCol + 1; colIdx++) {
+				float x = xOff + colIdx * scaledTileSize;
+				canvas.drawLine(x, y0, x, y1, gridPaint);
+			}
+			if (C.DEVELOPER_MODE) {
+				renderStats.endPhase(RenderStats.PHASE_GRID);
+			}
 		}
-		canvas.restore();
 	}
 
 	public void setTile(int row, int column, String path) {
@@ -364,43 +911,133 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 	}
 
 	public void setTile(int row, int column, String path, byte angle) {
+		/* The cell gives up the reference to its previous tile, if any */
+		String previous = tileMap.getPath(row, column);
 		if (path != null) {
-			try {
-				InputStream is = null;
-				if (path.startsWith("assets:")) {
-					// 7 = "assets:".length();
-					is = context.getAssets().open(path.substring(7));
-				} else if (path.startsWith("content:")) {
-					Uri uri = Uri.parse(path);
-					is = context.getContentResolver().openInputStream(uri);
-				}
-				Bitmap source = BitmapFactory.decodeStream(is);
-				Bitmap scaled = Bitmap.createScaledBitmap(source, tileSize, tileSize, true);
-				tileMap.tileBitmaps[row][column] = scaled;
-				tileMap.tilePaths[row][column] = path;
-				tileMap.tileAngles[row][column] = angle;
-				tileMap.tileMatrices[row][column] = new Matrix();
-				source.recycle();
-			} catch (IOException ioex) {
-				Toast.makeText(context, context.getResources().getString(R.string.tiledMap_error_tilenotfound, path),
-						Toast.LENGTH_LONG).show();
-				/* And reset the tile as if it was empty. */
-				tileMap.tileBitmaps[row][column] = null;
-				tileMap.tilePaths[row][column] = null;
-				tileMap.tileAngles[row][column] = 0;
-				tileMap.tileMatrices[row][column] = null;
+			int idx = tileMap.intern(path);
+			tileMap.setTile(row, column, idx, angle);
+			if (tileStore.acquire(path)) {
+				/* Drawn as a placeholder until it is decoded */
+				tileLoader.load(path);
 			}
 		} else {
-			/* This is an "alias" to remove the tile. */
-			if (tileMap.tileBitmaps[row][column] != null) {
-				tileMap.tileBitmaps[row][column].recycle();
-			}
-			tileMap.tileBitmaps[row][column] = null;
-			tileMap.tilePaths[row][column] = null;
-			tileMap.tileAngles[row][column] = 0;
-			tileMap.tileMatrices[row][column] = null;
+			/*
+			 * This is an "alias" to remove the tile. The bitmap is only recycled by
+			 * the store once no other cell is using it.
+			 */
+			tileMap.clearTile(row, column);
 		} // end-if: path is null
-		invalidate();
+		if (previous != null) {
+			tileStore.release(previous);
+		}
+		invalidateThumb(row, column);
+		/* Only the cell has changed */
+		invalidateTile(row, column);
+	}
+
+	/**
+	 * Acquires the tiles used by each cell of the map and schedules the decoding
+	 * of every one of them, once per tile. Until then, cells are drawn with a
+	 * placeholder.
+	 */
+	private void loadTileBitmaps() {
+		int[] cells = tileMap.cells;
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i] != TileMap.EMPTY && tileStore.acquire(tileMap.palette.get(TileMap.paletteIndexOf(cells[i])))) {
+				tileLoader.load(tileMap.palette.get(TileMap.paletteIndexOf(cells[i])));
+			}
+		}
+	}
+
+	@Override
+	public void onTileLoaded(String path, Bitmap bitmap) {
+		Integer idx = tileMap.paletteLookup.get(path);
+		if (bitmap != null) {
+			if (!tileStore.put(path, bitmap)) {
+				/* No cell is using the tile anymore */
+				return;
+			}
+		} else if (idx != null) {
+			Toast.makeText(context, context.getResources().getString(R.string.tiledMap_error_tilenotfound, path),
+					Toast.LENGTH_LONG).show();
+		}
+		if (idx == null) {
+			return;
+		}
+		/* Only repaint the cells using this tile */
+		int[] cells = tileMap.cells;
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i] != TileMap.EMPTY && TileMap.paletteIndexOf(cells[i]) == idx) {
+				invalidateTile(i / tileMap.columns, i % tileMap.columns);
+				thumbDirtyCells.set(i);
+			}
+		}
+		if (bitmap == null) {
+			/* Reset the cells as if they were empty. */
+			tileMap.clearTiles(idx);
+			tileStore.remove(path);
+		}
+	}
+
+	@Override
+	public void onTileReleased(String path) {
+		tileCache.evict(path);
+		Bitmap mini = thumbMiniTiles.remove(path);
+		if (mini != null) {
+			mini.recycle();
+		}
+	}
+
+	/**
+	 * Invalidates the area of the view covered by the given cell.
+	 */
+	private void invalidateTile(int row, int column) {
+		float scaledTileSize = tileSize * tileMap.scale;
+		float left = tileMap.xOff + column * scaledTileSize;
+		float top = tileMap.yOff + row * scaledTileSize;
+		/* Round outwards, and include the grid lines on the edges */
+		invalidate((int) FloatMath.floor(left) - 1, (int) FloatMath.floor(top) - 1,
+				(int) FloatMath.ceil(left + scaledTileSize) + 1, (int) FloatMath.ceil(top + scaledTileSize) + 1);
+		/* The region of the cell is recorded again on the next frame */
+		if (regionPictures != null) {
+			regionPictures[(row / PICTURE_REGION_CELLS) * regionColumns + column / PICTURE_REGION_CELLS] = null;
+		}
+		if (layerValid && layerChunks != null) {
+			/* Same area relative to the map origin: the chunks it overlaps are rendered again */
+			left = column * scaledTileSize;
+			top = row * scaledTileSize;
+			int firstCx = Math.max(0, (int) FloatMath.floor((left - 1) / LAYER_CHUNK_SIZE));
+			int lastCx = (int) FloatMath.floor((left + scaledTileSize + 1) / LAYER_CHUNK_SIZE);
+			int firstCy = Math.max(0, (int) FloatMath.floor((top - 1) / LAYER_CHUNK_SIZE));
+			int lastCy = (int) FloatMath.floor((top + scaledTileSize + 1) / LAYER_CHUNK_SIZE);
+			for (int cy = firstCy; cy <= lastCy; cy++) {
+				for (int cx = firstCx; cx <= lastCx; cx++) {
+					int slot = (cy % layerRows) * layerColumns + (cx % layerColumns);
+					if (layerChunkX[slot] == cx && layerChunkY[slot] == cy) {
+						layerChunkValid[slot] = false;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		/* Resume the decoding interrupted by a previous detach, if any */
+		if (tileMap != null) {
+			for (String path : tileMap.palette) {
+				if (tileStore.isLoading(path)) {
+					tileLoader.load(path);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		tileLoader.shutdown();
+		super.onDetachedFromWindow();
 	}
 
 	public void removeTile(int row, int column) {
@@ -408,8 +1045,10 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 	}
 
 	public void rotateTile(int row, int column) {
-		tileMap.tileAngles[row][column] = (byte) ((tileMap.tileAngles[row][column] + 1) % 4);
-		invalidate();
+		tileMap.rotateTile(row, column);
+		invalidateThumb(row, column);
+		/* Only the cell has changed */
+		invalidateTile(row, column);
 	}
 
 	/*
@@ -432,56 +1071,62 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 
 	@Override
 	public void selectObject(TileMap obj, PointInfo touchPoint) {
-		currentTouchPoint.set(touchPoint);
 		if (obj != null && touchPoint.getNumTouchPoints() == 1) {
 			// First finger pressed
 			fingerDownTime = touchPoint.getEventTime();
-			fingerDownPoint.set(touchPoint);
-			Log.d(TAG, "first finger pressed, fingerDownTime: " + fingerDownTime);
+			fingerDownX = touchPoint.getX();
+			fingerDownY = touchPoint.getY();
+			if (C.DEVELOPER_MODE) {
+				Log.d(TAG, "first finger pressed, fingerDownTime: " + fingerDownTime);
+			}
 		} else if (touchPoint.getNumTouchPoints() == 1) {
-			Log.d(TAG, MessageFormat.format(
-					"last finger removed, fingerDownTime: {0}, eventTime: {1}, delta: {2} longPress: {3}", fingerDownTime,
-					touchPoint.getEventTime(), (touchPoint.getEventTime() - fingerDownTime),
-					ViewConfiguration.getLongPressTimeout()));
+			if (C.DEVELOPER_MODE) {
+				Log.d(TAG, "last finger removed, fingerDownTime: " + fingerDownTime + ", eventTime: "
+						+ touchPoint.getEventTime() + ", longPress: " + ViewConfiguration.getLongPressTimeout());
+			}
 			// Last finger removed from screen
-			float dX = (touchPoint.getX() - fingerDownPoint.getX());
-			float dY = (touchPoint.getY() - fingerDownPoint.getY());
-			float distance = FloatMath.sqrt(dX * dX + dY * dY);
-			if (distance < MIN_DISTANCE) {
+			float dX = (touchPoint.getX() - fingerDownX);
+			float dY = (touchPoint.getY() - fingerDownY);
+			if (dX * dX + dY * dY < MIN_DISTANCE_SQ) {
 				/*
 				 * Calculate row+column. touchPoint(x,y) are relative to the screen.
 				 */
 				int column = (int) FloatMath.floor(((touchPoint.getX() - tileMap.xOff) / tileMap.scale) / tileSize);
 				int row = (int) FloatMath.floor(((touchPoint.getY() - tileMap.yOff) / tileMap.scale) / tileSize);
-				Log.d(TAG, "p=(" + touchPoint.getX() + "," + touchPoint.getY() + ") row=" + row + ", col=" + column);
-				Log.d(TAG,
-						MessageFormat.format("p=({0},{1}) row={2}, col={3}", touchPoint.getX(), touchPoint.getY(), row, column));
+				if (C.DEVELOPER_MODE) {
+					Log.d(TAG, "p=(" + touchPoint.getX() + "," + touchPoint.getY() + ") row=" + row + ", col=" + column);
+				}
 				if (row >= 0 && row < tileMap.rows && column >= 0 && column < tileMap.columns) {
-					boolean acted = false;
+					/* Cells changed by the listeners invalidate themselves, see setTile() */
 					if (touchPoint.getEventTime() - fingerDownTime > ViewConfiguration.getLongPressTimeout()) {
-						Log.d(TAG, "long press detected");
+						if (C.DEVELOPER_MODE) {
+							Log.d(TAG, "long press detected");
+						}
 						if (longPressListener != null) {
-							acted = longPressListener.onLongPress(row, column, tileMap.tilePaths[row][column] == null);
+							longPressListener.onLongPress(row, column, tileMap.isEmpty(row, column));
 						}
-						if (tileMap.tilePaths[row][column] != null) {
+						if (!tileMap.isEmpty(row, column)) {
 							/* Only if the tile is not empty */
 							super.performLongClick();
 						}
 					} else {
-						Log.d(TAG, "short press detected");
+						if (C.DEVELOPER_MODE) {
+							Log.d(TAG, "short press detected");
+						}
 						if (shortPressListener != null) {
-							acted = shortPressListener.onShortPress(row, column, tileMap.tilePaths[row][column] == null);
+							shortPressListener.onShortPress(row, column, tileMap.isEmpty(row, column));
 						}
 					}
-					if (acted) {
-						invalidate();
-					}
 				} else {
 					/* Touched outside region of map */
-					Log.d(TAG, "touch input outside of region");
+					if (C.DEVELOPER_MODE) {
+						Log.d(TAG, "touch input outside of region");
+					}
 				}
 			} else {
-				Log.d(TAG, "pointer moved more than min_distance, assuming no-tap event");
+				if (C.DEVELOPER_MODE) {
+					Log.d(TAG, "pointer moved more than min_distance, assuming no-tap event");
+				}
 			}
 		}
 	}
@@ -498,60 +1143,23 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 
 	@Override
 	public boolean setPositionAndScale(TileMap obj, PositionAndScale newObjPosAndScale, PointInfo touchPoint) {
-		currentTouchPoint.set(touchPoint);
 		if (obj != null) {
 			boolean invalidated = false;
 			if (Math.abs(obj.scale - newObjPosAndScale.getScale()) > 0) {
-				/*
-				 * First limit scaling:
-				 */
-				float tileScaleFactor = 1.5f;
-				float newTentativeMapWidth = obj.columns * tileSize * newObjPosAndScale.getScale();
-				float newTentativeMapHeight = obj.rows * tileSize * newObjPosAndScale.getScale();
-				if (obj.scale > newObjPosAndScale.getScale() && newTentativeMapHeight < getHeight()
-						&& newTentativeMapWidth < getWidth()) {
-					// Limit scaling down to minimum breakdown scale
-					obj.scale = Math.min(getWidth() / (float) (obj.columns * tileSize), getHeight()
-							/ (float) (obj.rows * tileSize));
-				} else if (obj.scale < newObjPosAndScale.getScale()
-						&& tileScaleFactor * tileSize * newObjPosAndScale.getScale() > getWidth()
-						&& tileScaleFactor * tileSize * newObjPosAndScale.getScale() > getHeight()) {
-					// Limit scaling up to a single tile.
-					obj.scale = Math.max(getWidth() / (float) (tileScaleFactor * tileSize), getHeight()
-							/ (float) (tileScaleFactor * tileSize));
-				} else {
-					obj.scale = newObjPosAndScale.getScale();
-				}
+				obj.scale = viewport.constrainScale(obj.rows, obj.columns, obj.scale, newObjPosAndScale.getScale());
 				invalidated = true;
 			} // end-if: scale changed
 
 			/* Drag/Pan with limit: */
-			float dx = newObjPosAndScale.getXOff() - obj.xOff;
-			float dy = newObjPosAndScale.getYOff() - obj.yOff;
-			if (Math.abs(dx) > 0 || Math.abs(dy) > 0) {
-				RectF vr = new RectF(0, 0, getWidth(), getHeight());
-				RectF dr = new RectF(newObjPosAndScale.getXOff(), newObjPosAndScale.getYOff(), newObjPosAndScale.getXOff()
-						+ obj.columns * tileSize * obj.scale, newObjPosAndScale.getYOff() + obj.rows * tileSize * obj.scale);
-				float diffUp = Math.min(vr.bottom - dr.bottom, 0 - dr.top);
-				float diffDown = Math.max(vr.bottom - dr.bottom, 0 - dr.top);
-				float diffLeft = Math.min(0 - dr.left, vr.right - dr.right);
-				float diffRight = Math.max(0 - dr.left, vr.right - dr.right);
-				if (diffUp > 0) {
-					dy += diffUp;
-				}
-				if (diffDown < 0) {
-					dy += diffDown;
-				}
-				if (diffLeft > 0) {
-					dx += diffLeft;
-				}
-				if (diffRight < 0) {
-					dx += diffRight;
-				}
+			if (newObjPosAndScale.getXOff() != obj.xOff || newObjPosAndScale.getYOff() != obj.yOff) {
+				viewport.constrainOffset(obj.rows, obj.columns, obj.scale, newObjPosAndScale.getXOff(),
+						newObjPosAndScale.getYOff());
+				float dx = viewport.getXOff() - obj.xOff;
+				float dy = viewport.getYOff() - obj.yOff;
 				/*
 				 * Does the map need repainting?
 				 */
-				if (FloatMath.sqrt(dx * dx + dy * dy) > MIN_DISTANCE_TO_INVALIDATE) {
+				if (dx * dx + dy * dy > MIN_DISTANCE_TO_INVALIDATE_SQ) {
 					obj.xOff += dx;
 					obj.yOff += dy;
 					invalidated = true;
@@ -591,14 +1199,20 @@ public class TiledMapView extends View implements MultiTouchObjectCanvas<TileMap
 		 */
 		if (C.PREFS_MAP_SHOW_GRID.compareTo(key) == 0) {
 			mustDrawGrid = prefs.getBoolean(key, C.DEFAULT_MAP_SHOW_GRID);
-			invalidate();
+			invalidateLayer();
 		} else if (C.PREFS_EXPORT_SHOW_GRID.compareTo(key) == 0) {
 			mustExportGrid = prefs.getBoolean(key, C.DEFAULT_EXPORT_SHOW_GRID);
 			invalidate();
+		} else if (C.PREFS_MAP_DISPLAY_LIST.compareTo(key) == 0) {
+			mustUseDisplayList = prefs.getBoolean(key, C.DEFAULT_MAP_DISPLAY_LIST);
+			invalidateLayer();
 		} else if (C.PREFS_MAP_COLOR_EMPTY_TILE.compareTo(key) == 0) {
 			emptyTileColor = prefs.getInt(key, C.DEFAULT_MAP_COLOR_EMPTY_TILE);
 			emptyTilePaint.setColor(emptyTileColor);
-			invalidate();
+			if (tileMap != null) {
+				thumbDirtyCells.set(0, tileMap.rows * tileMap.columns);
+			}
+			invalidateLayer();
 		}
 	}
 
@@ -17,35 +17,33 @@
 package it.sineo.android.tileMapEditor;
 
 import java.io.File;
-import java.io.IOException;
 
 import android.os.Environment;
 
 public class Util {
 	protected static File getExternalStorageDirectory() {
-		File sdcard = Environment.getExternalStorageDirectory();
-		File _externalSD = new File(sdcard, "_externalSD");
-		if (_externalSD.exists()) {
-			sdcard = _externalSD;
-		}
-		File destDirectory = new File(sdcard, C.EXTERNAL_DIR);
+		File destDirectory = getExternalBaseDirectory();
 		if (!destDirectory.exists()) {
 			destDirectory.mkdirs();
 		}
 		return destDirectory;
 	}
 
+	/**
+	 * Where the thumbnails were kept before they were moved into the database.
+	 * Unlike {@link #getExternalStorageDirectory()}, nothing is created.
+	 */
 	protected static File getExternalThumbnailsDirectory() {
-		File homeDir = getExternalStorageDirectory();
-		File thumbsDir = new File(homeDir, C.EXTERNAL_DIR_THUMBNAILS);
-		thumbsDir.mkdirs();
-		File nomediaFile = new File(thumbsDir, ".nomedia");
-		try {
-			nomediaFile.createNewFile();
-		} catch (IOException ioex) {
-			ioex.printStackTrace();
+		return new File(getExternalBaseDirectory(), C.EXTERNAL_DIR_THUMBNAILS);
+	}
+
+	private static File getExternalBaseDirectory() {
+		File sdcard = Environment.getExternalStorageDirectory();
+		File _externalSD = new File(sdcard, "_externalSD");
+		if (_externalSD.exists()) {
+			sdcard = _externalSD;
 		}
-		return thumbsDir;
+		return new File(sdcard, C.EXTERNAL_DIR);
 	}
 
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+/**
+ * Limits of pan and zoom for a map shown in a view. It is called on every
+ * move event, hence it never allocates: the constrained offsets are kept in
+ * the instance and read back through {@link #getXOff()} and
+ * {@link #getYOff()}.
+ */
+class ViewportConstraint {
+	/** Zooming in stops when a tile is this many times larger than the view. */
+	private final static float MAX_TILE_SCALE_FACTOR = 1.5f;
+
+	private final int tileSize;
+	private int viewWidth;
+	private int viewHeight;
+
+	private float xOff;
+	private float yOff;
+
+	public ViewportConstraint(int tileSize) {
+		this.tileSize = tileSize;
+	}
+
+	public void setViewSize(int width, int height) {
+		this.viewWidth = width;
+		this.viewHeight = height;
+	}
+
+	/**
+	 * Limits the requested scale: zooming out stops once the whole map fits in
+	 * the view, zooming in once a single tile fills it.
+	 */
+	public float constrainScale(int rows, int columns, float current, float requested) {
+		float mapWidth = columns * tileSize * requested;
+		float mapHeight = rows * tileSize * requested;
+		float scaledTile = MAX_TILE_SCALE_FACTOR * tileSize * requested;
+		if (current > requested && mapHeight < viewHeight && mapWidth < viewWidth) {
+			// Limit scaling down to minimum breakdown scale
+			return Math.min(viewWidth / (float) (columns * tileSize), viewHeight / (float) (rows * tileSize));
+		} else if (current < requested && scaledTile > viewWidth && scaledTile > viewHeight) {
+			// Limit scaling up to a single tile.
+			return Math.max(viewWidth / (MAX_TILE_SCALE_FACTOR * tileSize), viewHeight
+					/ (MAX_TILE_SCALE_FACTOR * tileSize));
+		} else {
+			return requested;
+		}
+	}
+
+	/**
+	 * Limits the requested offsets of the map, so that it is not dragged away
+	 * from the view. The results are available through {@link #getXOff()} and
+	 * {@link #getYOff()}.
+	 */
+	public void constrainOffset(int rows, int columns, float scale, float requestedXOff, float requestedYOff) {
+		float right = requestedXOff + columns * tileSize * scale;
+		float bottom = requestedYOff + rows * tileSize * scale;
+		float diffUp = Math.min(viewHeight - bottom, -requestedYOff);
+		float diffDown = Math.max(viewHeight - bottom, -requestedYOff);
+		float diffLeft = Math.min(-requestedXOff, viewWidth - right);
+		float diffRight = Math.max(-requestedXOff, viewWidth - right);
+		xOff = requestedXOff;
+		yOff = requestedYOff;
+		if (diffUp > 0) {
+			yOff += diffUp;
+		}
+		if (diffDown < 0) {
+			yOff += diffDown;
+		}
+		if (diffLeft > 0) {
+			xOff += diffLeft;
+		}
+		if (diffRight < 0) {
+			xOff += diffRight;
+		}
+	}
+
+	public float getXOff() {
+		return xOff;
+	}
+
+	public float getYOff() {
+		return yOff;
+	}
+}
@@ -49,8 +49,6 @@ package org.metalev.multitouch.controller;
  *   Dual-licensed under the Apache License v2 and the GPL v2.
  */
 
-import java.lang.reflect.Method;
-
 import android.util.Log;
 import android.view.MotionEvent;
 
@@ -153,6 +151,9 @@ public class MultiTouchController<T> {
 	/** Current drag mode */
 	private int mMode = MODE_NOTHING;
 
+	/** Whether to skip the historical samples of move events */
+	private boolean coalesceMoves = false;
+
 	// ----------------------------------------------------------------------------------------------------------------------
 
 	/** Constructor that sets handleSingleTouchEvents to true */
@@ -184,50 +185,28 @@ public class MultiTouchController<T> {
 		return handleSingleTouchEvents;
 	}
 
-	// ------------------------------------------------------------------------------------
+	/**
+	 * Whether to fold the historical samples of an ACTION_MOVE event into a single update, using only its most recent sample. Since Android 4.1
+	 * input events are batched once per display frame, so this results in at most one pan/zoom update per frame. Default: false
+	 */
+	public void setCoalesceMoves(boolean coalesceMoves) {
+		this.coalesceMoves = coalesceMoves;
+	}
 
-	public static final boolean multiTouchSupported;
-	private static Method m_getPointerCount;
-	private static Method m_getPointerId;
-	private static Method m_getPressure;
-	private static Method m_getHistoricalX;
-	private static Method m_getHistoricalY;
-	private static Method m_getHistoricalPressure;
-	private static Method m_getX;
-	private static Method m_getY;
-	private static int ACTION_POINTER_UP = 6;
-	private static int ACTION_POINTER_INDEX_SHIFT = 8;
-
-	static {
-		boolean succeeded = false;
-		try {
-			// Android 2.0.1 stuff:
-			m_getPointerCount = MotionEvent.class.getMethod("getPointerCount");
-			m_getPointerId = MotionEvent.class.getMethod("getPointerId", Integer.TYPE);
-			m_getPressure = MotionEvent.class.getMethod("getPressure", Integer.TYPE);
-			m_getHistoricalX = MotionEvent.class.getMethod("getHistoricalX", Integer.TYPE, Integer.TYPE);
-			m_getHistoricalY = MotionEvent.class.getMethod("getHistoricalY", Integer.TYPE, Integer.TYPE);
-			m_getHistoricalPressure = MotionEvent.class.getMethod("getHistoricalPressure", Integer.TYPE, Integer.TYPE);
-			m_getX = MotionEvent.class.getMethod("getX", Integer.TYPE);
-			m_getY = MotionEvent.class.getMethod("getY", Integer.TYPE);
-			succeeded = true;
-		} catch (Exception e) {
-			Log.e("MultiTouchController", "static initializer failed", e);
-		}
-		multiTouchSupported = succeeded;
-		if (multiTouchSupported) {
-			// Android 2.2+ stuff (the original Android 2.2 consts are declared above,
-			// and these actions aren't used previous to Android 2.2):
-			try {
-				ACTION_POINTER_UP = MotionEvent.class.getField("ACTION_POINTER_UP").getInt(null);
-				ACTION_POINTER_INDEX_SHIFT = MotionEvent.class.getField("ACTION_POINTER_INDEX_SHIFT").getInt(null);
-			} catch (Exception e) {
-			}
-		}
+	public boolean getCoalesceMoves() {
+		return coalesceMoves;
 	}
 
 	// ------------------------------------------------------------------------------------
 
+	/**
+	 * Always true: the application requires API level 7, where the multitouch MotionEvent methods are always available and are called directly
+	 * instead of through introspection (Method.invoke() allocated an argument array and boxed every value, for every pointer of every event).
+	 */
+	public static final boolean multiTouchSupported = true;
+
+	// ------------------------------------------------------------------------------------
+
 	private static final float[] xVals = new float[MAX_TOUCH_POINTS];
 	private static final float[] yVals = new float[MAX_TOUCH_POINTS];
 	private static final float[] pressureVals = new float[MAX_TOUCH_POINTS];
@@ -237,7 +216,7 @@ public class MultiTouchController<T> {
 	@SuppressWarnings("unused")
 	public boolean onTouchEvent(MotionEvent event) {
 		try {
-			int pointerCount = multiTouchSupported ? (Integer) m_getPointerCount.invoke(event) : 1;
+			int pointerCount = event.getPointerCount();
 			if (DEBUG)
 				Log.i("MultiTouch", "Got here 1 - " + multiTouchSupported + " " + mMode + " " + handleSingleTouchEvents + " " + pointerCount);
 			if (mMode == MODE_NOTHING && !handleSingleTouchEvents && pointerCount == 1)
@@ -249,10 +228,12 @@ public class MultiTouchController<T> {
 			// Handle history first (we sometimes get history with ACTION_MOVE events)
 			int action = event.getAction();
 			int histLen = event.getHistorySize() / pointerCount;
-			for (int histIdx = 0; histIdx <= histLen; histIdx++) {
+			// When coalescing, a move only counts for its latest position: the intermediate samples would cause one update each
+			int firstHistIdx = coalesceMoves && action == MotionEvent.ACTION_MOVE ? histLen : 0;
+			for (int histIdx = firstHistIdx; histIdx <= histLen; histIdx++) {
 				// Read from history entries until histIdx == histLen, then read from current event
 				boolean processingHist = histIdx < histLen;
-				if (!multiTouchSupported || pointerCount == 1) {
+				if (pointerCount == 1) {
 					// Use single-pointer methods -- these are needed as a special case (for some weird reason) even if
 					// multitouch is supported but there's only one touch point down currently -- event.getX(0) etc. throw
 					// an exception if there's only one point down.
@@ -269,35 +250,35 @@ public class MultiTouchController<T> {
 					if (DEBUG && pointerCount > MAX_TOUCH_POINTS)
 						Log.i("MultiTouch", "Got more pointers than MAX_TOUCH_POINTS");
 					for (int ptrIdx = 0; ptrIdx < numPointers; ptrIdx++) {
-						int ptrId = (Integer) m_getPointerId.invoke(event, ptrIdx);
-						pointerIds[ptrIdx] = ptrId;
+						pointerIds[ptrIdx] = event.getPointerId(ptrIdx);
 						// N.B. if pointerCount == 1, then the following methods throw an array index out of range exception,
 						// and the code above is therefore required not just for Android 1.5/1.6 but also for when there is
 						// only one touch point on the screen -- pointlessly inconsistent :(
-						xVals[ptrIdx] = (Float) (processingHist ? m_getHistoricalX.invoke(event, ptrIdx, histIdx) : m_getX.invoke(event, ptrIdx));
-						yVals[ptrIdx] = (Float) (processingHist ? m_getHistoricalY.invoke(event, ptrIdx, histIdx) : m_getY.invoke(event, ptrIdx));
-						pressureVals[ptrIdx] = (Float) (processingHist ? m_getHistoricalPressure.invoke(event, ptrIdx, histIdx) : m_getPressure
-								.invoke(event, ptrIdx));
+						xVals[ptrIdx] = processingHist ? event.getHistoricalX(ptrIdx, histIdx) : event.getX(ptrIdx);
+						yVals[ptrIdx] = processingHist ? event.getHistoricalY(ptrIdx, histIdx) : event.getY(ptrIdx);
+						pressureVals[ptrIdx] = processingHist ? event.getHistoricalPressure(ptrIdx, histIdx) : event.getPressure(ptrIdx);
 					}
 				}
 				// Decode event
 				decodeTouchEvent(pointerCount, xVals, yVals, pressureVals, pointerIds, //
 						/* action = */processingHist ? MotionEvent.ACTION_MOVE : action, //
 						/* down = */processingHist ? true : action != MotionEvent.ACTION_UP //
-								&& (action & ((1 << ACTION_POINTER_INDEX_SHIFT) - 1)) != ACTION_POINTER_UP //
+								&& (action & MotionEvent.ACTION_MASK) != MotionEvent.ACTION_POINTER_UP //
 								&& action != MotionEvent.ACTION_CANCEL, //
 						processingHist ? event.getHistoricalEventTime(histIdx) : event.getEventTime());
 			}
 
 			return true;
 		} catch (Exception e) {
-			// In case any of the introspection stuff fails (it shouldn't)
+			// Some early multitouch drivers report pointer indices out of range (IllegalArgumentException or
+			// ArrayIndexOutOfBoundsException depending on the device): drop the event rather than crash
 			Log.e("MultiTouchController", "onTouchEvent() failed", e);
 			return false;
 		}
 	}
 
-	private void decodeTouchEvent(int pointerCount, float[] x, float[] y, float[] pressure, int[] pointerIds, int action, boolean down, long eventTime) {
+	/** Package-private so that gesture streams can be replayed without a MotionEvent, see MultiTouchControllerTest */
+	void decodeTouchEvent(int pointerCount, float[] x, float[] y, float[] pressure, int[] pointerIds, int action, boolean down, long eventTime) {
 		if (DEBUG)
 			Log.i("MultiTouch", "Got here 5 - " + pointerCount + " " + action + " " + down);
 
@@ -568,11 +549,15 @@ public class MultiTouchController<T> {
 			return isMultiTouch ? dy : 0.0f;
 		}
 
-		/** Fast integer sqrt, by Jim Ulery. Much faster than Math.sqrt() for integers. */
-		private int julery_isqrt(int val) {
-			int temp, g = 0, b = 0x8000, bshft = 15;
+		/**
+		 * Fast integer sqrt, by Jim Ulery. Much faster than Math.sqrt() for integers. Works on longs, for results up to 0x3ffff: with 1/16 pixel
+		 * accuracy, an int would overflow for diameters above 2896px, which current screens reach. See IntegerSquareRootTest.
+		 */
+		static int julery_isqrt(long val) {
+			long temp;
+			int g = 0, b = 0x20000, bshft = 17;
 			do {
-				if (val >= (temp = (((g << 1) + b) << bshft--))) {
+				if (val >= (temp = ((long) ((g << 1) + b) << bshft--))) {
 					g += b;
 					val -= temp;
 				}
@@ -595,11 +580,9 @@ public class MultiTouchController<T> {
 				if (!isMultiTouch) {
 					diameter = 0.0f;
 				} else {
-					// Get 1/16 pixel's worth of subpixel accuracy, works on screens up to 2048x2048
-					// before we get overflow (at which point you can reduce or eliminate subpix
-					// accuracy, or use longs in julery_isqrt())
+					// Get 1/16 pixel's worth of subpixel accuracy, works for diameters up to 16383px
 					float diamSq = getMultiTouchDiameterSq();
-					diameter = (diamSq == 0.0f ? 0.0f : (float) julery_isqrt((int) (256 * diamSq)) / 16.0f);
+					diameter = (diamSq == 0.0f ? 0.0f : (float) julery_isqrt((long) (256 * diamSq)) / 16.0f);
 					// Make sure diameter is never less than dx or dy, for trig purposes
 					if (diameter < dx)
 						diameter = dx;
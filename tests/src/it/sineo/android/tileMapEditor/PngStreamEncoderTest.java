@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngStreamEncoderTest {
+
+	@Test
+	public void encodesRowsThatDecodeBack() throws IOException {
+		int[][] rows = {
+				{
+						0xffff0000, 0x8000ff00, 0x00000000
+				}, {
+						0xff0000ff, 0xffffffff, 0x7f102030
+				}
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PngStreamEncoder encoder = new PngStreamEncoder(out, 3, 2, Deflater.DEFAULT_COMPRESSION);
+		try {
+			for (int[] row : rows) {
+				encoder.writeRow(row, 0);
+			}
+			encoder.finish();
+		} finally {
+			encoder.close();
+		}
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(3, image.getWidth());
+		assertEquals(2, image.getHeight());
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < rows[y].length; x++) {
+				assertEquals("pixel " + x + "," + y, rows[y][x], image.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void canBeClosedAfterAFailedWrite() throws IOException {
+		final int[] budget = {
+			100
+		};
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				if (--budget[0] < 0) {
+					throw new IOException("disk full");
+				}
+			}
+		};
+		PngStreamEncoder encoder = new PngStreamEncoder(out, 64, 64, 0);
+		try {
+			int[] row = new int[64];
+			for (int y = 0; y < 64; y++) {
+				encoder.writeRow(row, 0);
+			}
+			encoder.finish();
+			fail("the write did not fail");
+		} catch (IOException expected) {
+		} finally {
+			encoder.close();
+			/* Twice, as a caller closing on every path may do */
+			encoder.close();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+
+public class TileMapJsonReaderTest {
+	private final static float DELTA = 1e-4f;
+
+	@Test
+	public void readsTheLegacyLayout() throws IOException {
+		/* As written by JSONObject, which escapes slashes */
+		TileMap map = read("{\"name\":\"My map\",\"rows\":2,\"columns\":3,\"scale\":1.5,\"xOff\":-10,\"yOff\":4.5,"
+				+ "\"paths_0_1\":\"gfx\\/roads\\/a.png\",\"angles_0_1\":2,\"paths_1_2\":\"gfx\\/b.png\",\"angles_1_2\":1}");
+		assertEquals("My map", map.name);
+		assertEquals(2, map.rows);
+		assertEquals(3, map.columns);
+		assertEquals(1.5f, map.scale, DELTA);
+		assertEquals(-10f, map.xOff, DELTA);
+		assertEquals(4.5f, map.yOff, DELTA);
+		assertEquals("gfx/roads/a.png", map.getPath(0, 1));
+		assertEquals(2, map.getAngle(0, 1));
+		assertEquals("gfx/b.png", map.getPath(1, 2));
+		assertEquals(1, map.getAngle(1, 2));
+		assertNull(map.getPath(0, 0));
+		assertNull(map.getPath(1, 1));
+	}
+
+	@Test
+	public void readsCellsBeforeTheSize() throws IOException {
+		TileMap map = read("{ \"angles_1_0\" : 3, \"paths_1_0\" : \"a.png\", \"extra\" : {\"x\": [1, \"}\"]},"
+				+ " \"columns\" : 2, \"rows\" : 2, \"paths_0_0\" : \"a.png\" }");
+		assertEquals("a.png", map.getPath(1, 0));
+		assertEquals(3, map.getAngle(1, 0));
+		assertEquals("a.png", map.getPath(0, 0));
+		assertEquals(0, map.getAngle(0, 0));
+		assertEquals(1, map.palette.size());
+	}
+
+	@Test
+	public void rejectsMalformedDocuments() {
+		String[] documents = {
+				"", "{", "{\"rows\":2,\"columns\":2", "{\"rows\":\"two\",\"columns\":2}", "{\"rows\":-1,\"columns\":2}",
+				"{\"rows\":2,\"columns\":2,\"paths_x_0\":\"a.png\"}", "{\"rows\":2 \"columns\":2}", "{\"name\":\"\\q\"}",
+				"{\"columns\":2}", "[]",
+		};
+		for (String document : documents) {
+			try {
+				read(document);
+				fail("accepted " + document);
+			} catch (IOException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void ignoresCellsOutsideTheMap() throws IOException {
+		TileMap map = read("{\"rows\":1,\"columns\":1,\"paths_0_0\":\"a.png\",\"paths_3_0\":\"b.png\",\"paths_-1_0\":\"c.png\"}");
+		assertEquals("a.png", map.getPath(0, 0));
+		assertEquals(1, map.palette.size());
+	}
+
+	/**
+	 * Compares the heap held while converting a 100x100 map with the one held
+	 * by the old approach: the document as a String plus a DOM with one entry
+	 * per member, which is what JSONObject keeps, before the map even exists.
+	 */
+	@Test
+	public void streamingHoldsLessHeapThanTheDocument() throws IOException {
+		File file = File.createTempFile("legacy", ".json");
+		try {
+			writeDocument(file, 100, 100);
+
+			long before = usedHeap();
+			Object[] dom = readDocument(file);
+			long domHeap = usedHeap() - before;
+			assertEquals(2 + 100 * 100 * 2 + 4, ((LinkedHashMap<?, ?>) dom[1]).size());
+			dom = null;
+
+			before = usedHeap();
+			Reader in = new FileReader(file);
+			TileMap map = TileMapJsonReader.read(in);
+			long streamingHeap = usedHeap() - before;
+			assertEquals(100, map.rows);
+
+			System.out.println("100x100 map, " + file.length() + " bytes of JSON: document and DOM " + domHeap
+					+ " bytes, streaming " + streamingHeap + " bytes");
+			/* The map itself is about 40 KB, the document several MB */
+			assertTrue("streaming held " + streamingHeap + " bytes, DOM " + domHeap, streamingHeap * 10 < domHeap);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static TileMap read(String document) throws IOException {
+		return TileMapJsonReader.read(new StringReader(document));
+	}
+
+	private static void writeDocument(File file, int rows, int columns) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write("{\"name\":\"benchmark\",\"rows\":" + rows + ",\"columns\":" + columns
+					+ ",\"scale\":1,\"xOff\":0,\"yOff\":0");
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < columns; column++) {
+					out.write(",\"paths_" + row + "_" + column + "\":\"gfx\\/roads\\/road_" + ((row + column) % 16)
+							+ ".png\",\"angles_" + row + "_" + column + "\":" + (row % 4));
+				}
+			}
+			out.write("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	/* The document and its DOM, both referenced so that they are measured together */
+	private static Object[] readDocument(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		Reader in = new FileReader(file);
+		try {
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		String document = sb.toString();
+		sb = null;
+		LinkedHashMap<String, String> members = new LinkedHashMap<String, String>();
+		JsonPullReader reader = new JsonPullReader(new StringReader(document));
+		reader.beginObject();
+		while (reader.hasNext()) {
+			members.put(reader.nextName(), reader.nextString());
+		}
+		reader.endObject();
+		return new Object[] {
+				document, members
+		};
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.sineo.android.tileMapEditor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs on the plain JVM: {@link ViewportConstraint} has no Android
+ * dependencies.
+ */
+public class ViewportConstraintTest {
+	private final static float DELTA = 1e-4f;
+	private final static int TILE_SIZE = 32;
+	private final static int VIEW_WIDTH = 320;
+	private final static int VIEW_HEIGHT = 480;
+	/** Allocated by reading the allocation counter, see constrainingDoesNotAllocate() */
+	private final static long MEASUREMENT_OVERHEAD_BYTES = 512;
+
+	private ViewportConstraint constraint;
+
+	@Before
+	public void setUp() {
+		constraint = new ViewportConstraint(TILE_SIZE);
+		constraint.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+	}
+
+	@Test
+	public void scaleIsUnchangedWithinLimits() {
+		assertEquals(1.5f, constraint.constrainScale(100, 100, 1f, 1.5f), DELTA);
+		assertEquals(0.5f, constraint.constrainScale(100, 100, 1f, 0.5f), DELTA);
+	}
+
+	@Test
+	public void zoomingOutStopsWhenTheMapFits() {
+		/* 5x5 tiles are 80x80 pixels at 0.5: the narrowest side of the view wins */
+		assertEquals(2f, constraint.constrainScale(5, 5, 1f, 0.5f), DELTA);
+		/* A map smaller than the view along one axis only can still shrink */
+		assertEquals(0.1f, constraint.constrainScale(5, 100, 1f, 0.1f), DELTA);
+	}
+
+	@Test
+	public void zoomingInStopsAtASingleTile() {
+		/* A tile must fill the view, at most 1.5 times its size (48 pixels at 1x) */
+		assertEquals(10f, constraint.constrainScale(100, 100, 1f, 20f), DELTA);
+		/* Zooming out from there is always allowed */
+		assertEquals(5f, constraint.constrainScale(100, 100, 20f, 5f), DELTA);
+	}
+
+	@Test
+	public void offsetIsUnchangedInsideTheMap() {
+		constraint.constrainOffset(100, 100, 1f, -100f, -200f);
+		assertEquals(-100f, constraint.getXOff(), DELTA);
+		assertEquals(-200f, constraint.getYOff(), DELTA);
+	}
+
+	@Test
+	public void offsetStopsAtTopLeftEdges() {
+		constraint.constrainOffset(100, 100, 1f, 50f, 60f);
+		assertEquals(0f, constraint.getXOff(), DELTA);
+		assertEquals(0f, constraint.getYOff(), DELTA);
+	}
+
+	@Test
+	public void offsetStopsAtBottomRightEdges() {
+		/* The map is 3200x3200 pixels: its far corner stays on the far corner of the view */
+		constraint.constrainOffset(100, 100, 1f, -3000f, -3000f);
+		assertEquals(VIEW_WIDTH - 3200f, constraint.getXOff(), DELTA);
+		assertEquals(VIEW_HEIGHT - 3200f, constraint.getYOff(), DELTA);
+
+		/* The same at twice the scale */
+		constraint.constrainOffset(100, 100, 2f, -7000f, -7000f);
+		assertEquals(VIEW_WIDTH - 6400f, constraint.getXOff(), DELTA);
+		assertEquals(VIEW_HEIGHT - 6400f, constraint.getYOff(), DELTA);
+	}
+
+	@Test
+	public void mapSmallerThanViewStaysInside() {
+		/* 5x5 tiles are 160x160 pixels at 1x */
+		constraint.constrainOffset(5, 5, 1f, 0f, 0f);
+		assertEquals(0f, constraint.getXOff(), DELTA);
+		assertEquals(0f, constraint.getYOff(), DELTA);
+
+		constraint.constrainOffset(5, 5, 1f, -50f, -10f);
+		assertEquals(0f, constraint.getXOff(), DELTA);
+		assertEquals(0f, constraint.getYOff(), DELTA);
+
+		constraint.constrainOffset(5, 5, 1f, 200f, 400f);
+		assertEquals(VIEW_WIDTH - 160f, constraint.getXOff(), DELTA);
+		assertEquals(VIEW_HEIGHT - 160f, constraint.getYOff(), DELTA);
+
+		constraint.constrainOffset(5, 5, 1f, 100f, 100f);
+		assertEquals(100f, constraint.getXOff(), DELTA);
+		assertEquals(100f, constraint.getYOff(), DELTA);
+	}
+
+	@Test
+	public void constrainingDoesNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		long thread = Thread.currentThread().getId();
+		/* Warm up, so that the JIT and the class loading do not count */
+		float sink = drag(20000);
+		long before = threads.getThreadAllocatedBytes(thread);
+		sink += drag(100000);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		/* Keeps the loop from being optimized away */
+		assumeTrue(!Float.isNaN(sink));
+		/* Only the measurement itself may allocate, a few hundred bytes at most */
+		assertTrue("bytes allocated over 100000 calls: " + allocated, allocated < MEASUREMENT_OVERHEAD_BYTES);
+	}
+
+	private float drag(int count) {
+		float sum = 0;
+		float scale = 1f;
+		for (int i = 0; i < count; i++) {
+			scale = constraint.constrainScale(100, 100, scale, 0.5f + (i % 40) / 10f);
+			constraint.constrainOffset(100, 100, scale, -(i % 5000), -(i % 3000));
+			sum += constraint.getXOff() + constraint.getYOff();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.metalev.multitouch.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import org.metalev.multitouch.controller.MultiTouchController.PointInfo;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link PointInfo#julery_isqrt(long)} against Math.sqrt() where an
+ * integer square root goes wrong: around perfect squares and at the largest
+ * argument getMultiTouchDiameter() is expected to pass, 256 times the square of
+ * a 16382px diameter (twice the largest 8191px coordinate).
+ */
+public class IntegerSquareRootTest {
+	private final static long MAX_VALUE = (2L * 8191) * (2L * 8191) * 256;
+
+	@Test
+	public void zero() {
+		assertEquals(0, PointInfo.julery_isqrt(0));
+	}
+
+	@Test
+	public void aroundPerfectSquares() {
+		int maxRoot = (int) Math.sqrt(MAX_VALUE);
+		for (long root = 1; root <= maxRoot; root++) {
+			long square = root * root;
+			check(square - 1);
+			check(square);
+			check(square + 1);
+		}
+	}
+
+	@Test
+	public void largestValue() {
+		assertEquals(2 * 8191 * 16, PointInfo.julery_isqrt(MAX_VALUE));
+		check(MAX_VALUE - 1);
+		check(MAX_VALUE);
+	}
+
+	/**
+	 * Times the diameters of a sweep of pinches with both square roots. Only
+	 * printed: timings on a desktop JIT say little about a phone.
+	 */
+	@Test
+	public void benchmarkAgainstMathSqrt() {
+		long sink = 0;
+		long julery = 0, math = 0;
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for (long value = 1; value < MAX_VALUE; value += 9973) {
+				sink += PointInfo.julery_isqrt(value);
+			}
+			long middle = System.nanoTime();
+			for (long value = 1; value < MAX_VALUE; value += 9973) {
+				sink -= (int) Math.sqrt(value);
+			}
+			long end = System.nanoTime();
+			/* The first round warms up the JIT */
+			if (round > 0) {
+				julery += middle - start;
+				math += end - middle;
+			}
+		}
+		/* Both computed the same roots */
+		assertEquals(0, sink);
+		System.out.println((MAX_VALUE / 9973 * 4) + " square roots: julery_isqrt " + julery / 1000000 + " ms, Math.sqrt "
+				+ math / 1000000 + " ms");
+	}
+
+	private static void check(long value) {
+		assertEquals("isqrt(" + value + ")", (int) Math.sqrt(value), PointInfo.julery_isqrt(value));
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2012 Luca Santarelli
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.metalev.multitouch.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.metalev.multitouch.controller.MultiTouchController.MultiTouchObjectCanvas;
+import org.metalev.multitouch.controller.MultiTouchController.PointInfo;
+import org.metalev.multitouch.controller.MultiTouchController.PositionAndScale;
+
+/**
+ * Replays gesture streams through {@link MultiTouchController#decodeTouchEvent}
+ * on the plain JVM: MotionEvent itself is only read by onTouchEvent().
+ */
+public class MultiTouchControllerTest {
+	private final static float DELTA = 1e-4f;
+	/* MotionEvent constants, inlined so that the test does not need android.jar */
+	private final static int ACTION_DOWN = 0;
+	private final static int ACTION_UP = 1;
+	private final static int ACTION_MOVE = 2;
+	private final static int ACTION_POINTER_DOWN = 5;
+	/** Allocated by reading the allocation counter, as in ViewportConstraintTest */
+	private final static long MEASUREMENT_OVERHEAD_BYTES = 512;
+
+	private final float[] xs = new float[2];
+	private final float[] ys = new float[2];
+	private final float[] pressures = {
+			1f, 1f
+	};
+	private final int[] pointerIds = {
+			0, 1
+	};
+	private long eventTime;
+
+	private Canvas canvas;
+	private MultiTouchController<Canvas> controller;
+
+	@Before
+	public void setUp() {
+		canvas = new Canvas();
+		controller = new MultiTouchController<Canvas>(canvas);
+		eventTime = 0;
+	}
+
+	@Test
+	public void tapKeepsTheFingerDownPosition() {
+		event(1, ACTION_DOWN, true, 120f, 80f, 0, 0);
+		assertEquals(120f, canvas.fingerDownX, DELTA);
+		assertEquals(80f, canvas.fingerDownY, DELTA);
+		/* The pool is reused by the next event: the snapshot must not follow it */
+		event(1, ACTION_MOVE, true, 122f, 81f, 0, 0);
+		assertEquals(120f, canvas.fingerDownX, DELTA);
+		event(1, ACTION_UP, false, 122f, 81f, 0, 0);
+		assertEquals(1, canvas.taps);
+	}
+
+	@Test
+	public void dragIsNotATap() {
+		event(1, ACTION_DOWN, true, 100f, 100f, 0, 0);
+		for (int i = 1; i <= 10; i++) {
+			event(1, ACTION_MOVE, true, 100f + 5 * i, 100f, 0, 0);
+		}
+		event(1, ACTION_UP, false, 150f, 100f, 0, 0);
+		assertEquals(0, canvas.taps);
+		assertEquals(50f, canvas.xOff, DELTA);
+	}
+
+	@Test
+	public void pinchScales() {
+		gesture();
+		assertTrue("scale " + canvas.scale, canvas.scale > 1.5f);
+	}
+
+	@Test
+	public void gesturesDoNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		long thread = Thread.currentThread().getId();
+		/* Warm up, so that the JIT and the class loading do not count */
+		for (int i = 0; i < 2000; i++) {
+			gesture();
+		}
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 10000; i++) {
+			gesture();
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		/* Keeps the gestures from being optimized away */
+		assumeTrue(canvas.taps >= 0);
+		/* 10000 gestures are 250000 events: only the measurement itself may allocate */
+		assertTrue("bytes allocated over 10000 gestures: " + allocated, allocated < MEASUREMENT_OVERHEAD_BYTES);
+	}
+
+	/** One finger down and dragging, then a second one pinching out, then both lifted */
+	private void gesture() {
+		canvas.scale = 1f;
+		event(1, ACTION_DOWN, true, 100f, 100f, 0, 0);
+		for (int i = 1; i <= 10; i++) {
+			event(1, ACTION_MOVE, true, 100f + 2 * i, 100f, 0, 0);
+		}
+		event(2, ACTION_POINTER_DOWN | (1 << 8), true, 120f, 100f, 160f, 100f);
+		for (int i = 1; i <= 12; i++) {
+			event(2, ACTION_MOVE, true, 120f - 4 * i, 100f, 160f + 4 * i, 100f);
+		}
+		event(1, ACTION_UP, false, 72f, 100f, 0, 0);
+	}
+
+	private void event(int pointerCount, int action, boolean down, float x0, float y0, float x1, float y1) {
+		xs[0] = x0;
+		ys[0] = y0;
+		xs[1] = x1;
+		ys[1] = y1;
+		eventTime += 16;
+		controller.decodeTouchEvent(pointerCount, xs, ys, pressures, pointerIds, action, down, eventTime);
+	}
+
+	/** Reacts to the controller as TiledMapView does, with the tap detection on the finger-down snapshot */
+	private static class Canvas implements MultiTouchObjectCanvas<Canvas> {
+		private final static float MIN_DISTANCE_SQ = 15f * 15f;
+
+		float xOff, yOff, scale = 1f;
+		long fingerDownTime;
+		float fingerDownX, fingerDownY;
+		int taps;
+
+		@Override
+		public Canvas getDraggableObjectAtPoint(PointInfo touchPoint) {
+			return this;
+		}
+
+		@Override
+		public void getPositionAndScale(Canvas obj, PositionAndScale objPosAndScaleOut) {
+			objPosAndScaleOut.set(xOff, yOff, true, scale, false, 0, 0, false, 0);
+		}
+
+		@Override
+		public boolean setPositionAndScale(Canvas obj, PositionAndScale newObjPosAndScale, PointInfo touchPoint) {
+			xOff = newObjPosAndScale.getXOff();
+			yOff = newObjPosAndScale.getYOff();
+			scale = newObjPosAndScale.getScale();
+			return true;
+		}
+
+		@Override
+		public void selectObject(Canvas obj, PointInfo touchPoint) {
+			if (obj != null && touchPoint.getNumTouchPoints() == 1) {
+				fingerDownTime = touchPoint.getEventTime();
+				fingerDownX = touchPoint.getX();
+				fingerDownY = touchPoint.getY();
+			} else if (touchPoint.getNumTouchPoints() == 1) {
+				float dX = touchPoint.getX() - fingerDownX;
+				float dY = touchPoint.getY() - fingerDownY;
+				if (dX * dX + dY * dY < MIN_DISTANCE_SQ && touchPoint.getEventTime() > fingerDownTime) {
+					taps++;
+				}
+			}
+		}
+	}
+}